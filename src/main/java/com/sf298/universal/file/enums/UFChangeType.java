@@ -0,0 +1,21 @@
+package com.sf298.universal.file.enums;
+
+public enum UFChangeType {
+
+    /**
+     * The file or directory was created.
+     */
+    CREATED,
+
+    /**
+     * The contents or attributes of the file changed. Backends that cannot tell a new file from a changed one
+     * report both as modified, e.g. Dropbox.
+     */
+    MODIFIED,
+
+    /**
+     * The file or directory was deleted, or moved away.
+     */
+    DELETED
+
+}
@@ -0,0 +1,11 @@
+package com.sf298.universal.file.enums;
+
+public enum UFCopyOption {
+
+    /**
+     * Skip the transfer when the destination already holds the same content as the source.
+     * Only applies where the destination can report a content hash, e.g. Dropbox.
+     */
+    SKIP_IF_UNCHANGED
+
+}
@@ -0,0 +1,122 @@
+package com.sf298.universal.file.model.functions;
+
+import com.sf298.universal.file.services.UFile;
+
+import java.util.regex.Pattern;
+
+/**
+ * A {@link UFilenameFilter} matching names against a glob pattern. Unlike an arbitrary filter, backends can send
+ * the pattern to the server so only matching entries are listed.
+ * <p>
+ * Supported syntax, matched against the whole name:
+ * <ul>
+ *     <li><code>*</code> matches any number of characters,</li>
+ *     <li><code>?</code> matches exactly one character,</li>
+ *     <li><code>[abc]</code>, <code>[a-z]</code> and <code>[!abc]</code> match one character from (or not from) a set,</li>
+ *     <li><code>{csv,tsv}</code> matches any of the comma separated alternatives,</li>
+ *     <li><code>\</code> escapes the following character.</li>
+ * </ul>
+ */
+public class UFileGlobFilter implements UFilenameFilter {
+
+    private final String glob;
+    private final Pattern pattern;
+
+    /**
+     * @param glob The glob pattern, e.g. <code>*.csv</code>.
+     * @throws IllegalArgumentException If the pattern is malformed.
+     */
+    public UFileGlobFilter(String glob) {
+        this.glob = glob;
+        this.pattern = Pattern.compile(toRegex(glob));
+    }
+
+    /**
+     * Get the glob pattern.
+     * @return The pattern this filter was created with.
+     */
+    public String getGlob() {
+        return glob;
+    }
+
+    /**
+     * Checks whether the pattern only uses <code>*</code> and <code>?</code>, the wildcards understood by most
+     * servers that accept patterns at all.
+     * @return <code>true</code> if the pattern uses no sets, alternatives or escapes.
+     */
+    public boolean isSimple() {
+        return glob.chars().noneMatch(c -> "[]{}\\".indexOf(c) >= 0);
+    }
+
+    /**
+     * Checks whether the pattern has no wildcards, so it matches exactly one name.
+     * @return <code>true</code> if the pattern is a literal name.
+     */
+    public boolean isLiteral() {
+        return glob.chars().noneMatch(c -> "*?[]{}\\".indexOf(c) >= 0);
+    }
+
+    @Override
+    public boolean accept(UFile dir, String name) {
+        return pattern.matcher(name).matches();
+    }
+
+    @Override
+    public String toString() {
+        return glob;
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '\\' -> {
+                    if (++i == glob.length()) {
+                        throw new IllegalArgumentException("Trailing escape in glob '"+glob+"'");
+                    }
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                }
+                case '*' -> regex.append(".*");
+                case '?' -> regex.append('.');
+                case '[' -> {
+                    int end = glob.indexOf(']', i + 2);
+                    if (end == -1) {
+                        throw new IllegalArgumentException("Unclosed '[' in glob '"+glob+"'");
+                    }
+                    String set = glob.substring(i + 1, end);
+                    regex.append('[');
+                    if (set.startsWith("!")) {
+                        regex.append('^');
+                        set = set.substring(1);
+                    }
+                    regex.append(set.replaceAll("([\\\\\\[\\]&^])", "\\\\$1"));
+                    regex.append(']');
+                    i = end;
+                }
+                case '{' -> {
+                    if (inGroup) {
+                        throw new IllegalArgumentException("Nested '{' in glob '"+glob+"'");
+                    }
+                    inGroup = true;
+                    regex.append("(?:");
+                }
+                case '}' -> {
+                    if (!inGroup) {
+                        throw new IllegalArgumentException("Unmatched '}' in glob '"+glob+"'");
+                    }
+                    inGroup = false;
+                    regex.append(')');
+                }
+                case ',' -> regex.append(inGroup ? "|" : ",");
+                default -> regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (inGroup) {
+            throw new IllegalArgumentException("Unclosed '{' in glob '"+glob+"'");
+        }
+        return regex.toString();
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.sf298.universal.file.model.responses;
+
+import com.sf298.universal.file.enums.UFChangeType;
+import com.sf298.universal.file.services.UFile;
+
+/**
+ * A change to one file or directory, reported by a {@link com.sf298.universal.file.services.UFChangeFeed}.
+ */
+public class UFChangeEvent {
+
+    private final UFile file;
+    private final UFChangeType type;
+
+    public UFChangeEvent(UFile file, UFChangeType type) {
+        this.file = file;
+        this.type = type;
+    }
+
+    /**
+     * Gets the file or directory that changed.
+     */
+    public UFile getFile() {
+        return file;
+    }
+
+    public UFChangeType getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + file.getPath();
+    }
+
+}
@@ -36,15 +36,25 @@ public class UFMetadata {
      */
     boolean isFolder;
 
+    /**
+     * The backend's hash of the file contents, if it provides one.
+     */
+    String contentHash;
+
     public UFMetadata() {}
 
     public UFMetadata(boolean exists, Long length, Date created, Date lastModified, boolean isFile, boolean isFolder) {
+        this(exists, length, created, lastModified, isFile, isFolder, null);
+    }
+
+    public UFMetadata(boolean exists, Long length, Date created, Date lastModified, boolean isFile, boolean isFolder, String contentHash) {
         this.exists = exists;
         this.length = length;
         this.created = created;
         this.lastModified = lastModified;
         this.isFile = isFile;
         this.isFolder = isFolder;
+        this.contentHash = contentHash;
     }
 
     /**
@@ -78,4 +88,12 @@ public class UFMetadata {
         return isFolder;
     }
 
+    /**
+     * Gets the backend's hash of the file contents.
+     * @return The hash, or null if the backend does not provide one or the object is not a file.
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
 }
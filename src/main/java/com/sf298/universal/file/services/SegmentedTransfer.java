@@ -0,0 +1,159 @@
+package com.sf298.universal.file.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+
+/**
+ * Copies large files by splitting the source into segments, fetching several segments at once with
+ * {@link UFile#read(long, long)} and writing them to the destination in order.
+ * <p>
+ * Each segment is fetched through its own {@link UFile} instance, so backends that hold one connection per
+ * open stream get one connection per segment in flight. At most <code>parallelism</code> segments are held in
+ * memory at any time.
+ */
+public class SegmentedTransfer {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final long DEFAULT_THRESHOLD = 64 * 1024 * 1024;
+
+    /**
+     * The settings used by every {@link UFile} that has not been given its own {@link SegmentedTransfer}.
+     */
+    public static final SegmentedTransfer DEFAULT = new SegmentedTransfer();
+
+    private int segmentSize;
+    private int parallelism;
+    private long threshold;
+
+    public SegmentedTransfer() {
+        this(DEFAULT_SEGMENT_SIZE, DEFAULT_PARALLELISM, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param segmentSize The number of bytes fetched by each ranged read.
+     * @param parallelism The number of segments fetched at once. A value of 1 disables segmented transfers.
+     * @param threshold The minimum file size in bytes for a segmented transfer to be used.
+     */
+    public SegmentedTransfer(long segmentSize, int parallelism, long threshold) {
+        setSegmentSize(segmentSize);
+        setParallelism(parallelism);
+        setThreshold(threshold);
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and "+Integer.MAX_VALUE+" bytes");
+        }
+        this.segmentSize = (int) segmentSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(long threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Checks whether <code>source</code> can be fetched in segments at all, before its length is known.
+     * @param source The file to be copied.
+     * @return <code>true</code> if the source seeks natively and more than one segment may be in flight.
+     */
+    public boolean accepts(UFile source) {
+        return parallelism > 1 && source.supportsRangedRead();
+    }
+
+    /**
+     * Checks whether a file of the given length from <code>source</code> should be fetched in segments.
+     * @param source The file to be copied.
+     * @param length The length of the file in bytes.
+     * @return <code>true</code> if the transfer should use {@link #transfer(UFile, long, OutputStream)}.
+     */
+    public boolean accepts(UFile source, long length) {
+        return accepts(source) && length >= threshold;
+    }
+
+    /**
+     * Copies the first <code>length</code> bytes of <code>source</code> to <code>out</code>.
+     * Does not close <code>out</code>.
+     * @param source The file to read from.
+     * @param length The number of bytes to copy.
+     * @param out The stream to write the reassembled file to.
+     * @throws IOException If any segment could not be fetched or written.
+     */
+    public void transfer(UFile source, long length, OutputStream out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "UFile-segment-"+source.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Deque<Future<byte[]>> window = new ArrayDeque<>();
+            long next = 0;
+            while (next < length || !window.isEmpty()) {
+                while (next < length && window.size() < parallelism) {
+                    long offset = next;
+                    int size = (int) Math.min(segmentSize, length - offset);
+                    window.add(executor.submit(() -> fetchSegment(source, offset, size)));
+                    next += size;
+                }
+                out.write(await(window.poll()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] fetchSegment(UFile source, long offset, int size) throws IOException {
+        UFile segmentSource = source.goTo(source.getPath());
+        byte[] buffer = new byte[size];
+        try {
+            try (InputStream in = segmentSource.read(offset, size)) {
+                int lengthRead = in.readNBytes(buffer, 0, size);
+                if (lengthRead != size) {
+                    throw new EOFException("Expected "+size+" bytes at offset "+offset+" of "+source+" but got "+lengthRead);
+                }
+            }
+        } finally {
+            segmentSource.readClose();
+        }
+        return buffer;
+    }
+
+    private static byte[] await(Future<byte[]> segment) throws IOException {
+        try {
+            return segment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for segment", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to fetch segment", e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.sf298.universal.file.services;
+
+import com.sf298.universal.file.model.responses.UFChangeEvent;
+import com.sf298.universal.file.model.responses.UFOperationResult;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Reports the files and directories created, modified and deleted below a directory, from a saved position
+ * onwards. Each poll returns the changes since the previous one and moves the position past them.
+ * <p>
+ * The position is a plain string, so it can be stored and passed to {@link UFile#changeFeed(String)} by a later
+ * process to carry on where this feed stopped.
+ */
+public abstract class UFChangeFeed implements Closeable {
+
+    public static final long DEFAULT_POLL_INTERVAL_MILLIS = 5_000;
+
+    protected final UFile root;
+    private long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+
+    protected UFChangeFeed(UFile root) {
+        this.root = root;
+    }
+
+    /**
+     * Get the directory this feed reports on.
+     * @return The root of the feed.
+     */
+    public UFile getRoot() {
+        return root;
+    }
+
+    public long getPollIntervalMillis() {
+        return pollIntervalMillis;
+    }
+
+    /**
+     * Set how long {@link #poll(long)} waits between polls when the backend cannot wait for changes itself.
+     * @param pollIntervalMillis The interval in milliseconds.
+     */
+    public void setPollIntervalMillis(long pollIntervalMillis) {
+        if (pollIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Poll interval must be positive");
+        }
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    /**
+     * Gets the changes since the last poll, or since the position the feed was opened at, without waiting.
+     * @return The changes, possibly none, or the exception if they could not be fetched.
+     */
+    public abstract UFOperationResult<List<UFChangeEvent>> poll();
+
+    /**
+     * Gets the changes since the last poll, waiting up to <code>timeoutMillis</code> for at least one.
+     * @param timeoutMillis The longest time to wait.
+     * @return The changes, empty if none happened in time, or the exception if they could not be fetched.
+     */
+    public UFOperationResult<List<UFChangeEvent>> poll(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            UFOperationResult<List<UFChangeEvent>> changes = poll();
+            long remaining = deadline - System.currentTimeMillis();
+            if (!changes.isSuccessful() || !changes.getResult().isEmpty() || remaining <= 0) {
+                return changes;
+            }
+            try {
+                Thread.sleep(Math.min(remaining, pollIntervalMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return changes;
+            }
+        }
+    }
+
+    /**
+     * Gets the position after the last poll.
+     * @return A string to resume the feed from with {@link UFile#changeFeed(String)}.
+     */
+    public abstract String getPosition();
+
+    /**
+     * Releases anything the feed holds open. The position stays valid.
+     */
+    @Override
+    public void close() {}
+
+}
@@ -0,0 +1,198 @@
+package com.sf298.universal.file.services;
+
+import com.sf298.universal.file.model.responses.UFMetadata;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.isNull;
+
+/**
+ * A process-wide, size-bounded cache of {@link UFMetadata}, shared by every {@link UFile} instance.
+ * Entries are keyed by the backend type, {@link UFile#getBackendIdentity()} and path, so a new instance for the same
+ * path (e.g. from {@link UFile#stepInto(String)} or {@link UFile#getParentUFile()}) sees the same entry.
+ * <p>
+ * Entries expire after the time-to-live set for their backend type, and the least recently used entry is evicted
+ * once <code>maxEntries</code> is reached. Mutations made through {@link UFile} update or invalidate the affected
+ * entries; changes made by other processes are only seen once the entry expires.
+ */
+public class UFMetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+    public static final long DEFAULT_TTL_MILLIS = 30_000;
+
+    /**
+     * The cache used by all {@link UFile} instances.
+     */
+    public static final UFMetadataCache SHARED = new UFMetadataCache(DEFAULT_MAX_ENTRIES);
+
+    private record Key(Class<?> backend, Object identity, String path) {}
+    private record Entry(UFMetadata metadata, long expiresAt) {}
+
+    private final Map<Class<?>, Long> ttls = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final LinkedHashMap<Key, Entry> entries;
+    private int maxEntries;
+
+    public UFMetadataCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                boolean evict = size() > UFMetadataCache.this.maxEntries;
+                if (evict) evictions.incrementAndGet();
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached metadata of <code>file</code>.
+     * @param file The file to look up.
+     * @return The cached metadata, or null if there is no live entry.
+     */
+    public UFMetadata get(UFile file) {
+        Key key = keyOf(file);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (isNull(entry) || entry.expiresAt < System.currentTimeMillis()) {
+                if (!isNull(entry)) entries.remove(key);
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.metadata;
+        }
+    }
+
+    /**
+     * Stores the metadata of <code>file</code> for the time-to-live of its backend.
+     * @param file The file the metadata describes.
+     * @param metadata The metadata to store.
+     */
+    public void put(UFile file, UFMetadata metadata) {
+        long ttl = getTtl(file.getClass());
+        if (ttl <= 0) return;
+
+        Entry entry = new Entry(metadata, System.currentTimeMillis() + ttl);
+        synchronized (entries) {
+            entries.put(keyOf(file), entry);
+        }
+    }
+
+    /**
+     * Removes the entry for <code>file</code>.
+     * @param file The file whose metadata changed.
+     */
+    public void invalidate(UFile file) {
+        synchronized (entries) {
+            entries.remove(keyOf(file));
+        }
+    }
+
+    /**
+     * Removes the entries for <code>file</code> and everything below it.
+     * @param file The file or directory whose metadata changed.
+     */
+    public void invalidateTree(UFile file) {
+        invalidateTrees(List.of(file));
+    }
+
+    /**
+     * Removes the entries for each of <code>files</code> and everything below them, in a single pass over the cache.
+     * @param files The files or directories whose metadata changed.
+     */
+    public void invalidateTrees(Collection<? extends UFile> files) {
+        if (files.isEmpty()) return;
+
+        Set<Key> roots = new HashSet<>();
+        Map<Class<?>, String> fileSeps = new HashMap<>();
+        for (UFile file : files) {
+            String sep = file.getFileSep();
+            roots.add(new Key(file.getClass(), file.getBackendIdentity(), stripTrailingSep(file.getPath(), sep)));
+            fileSeps.put(file.getClass(), sep);
+        }
+
+        // an entry goes if it, or any directory above it, is one of the roots
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> {
+                String sep = fileSeps.get(key.backend);
+                if (isNull(sep)) return false;
+                String path = stripTrailingSep(key.path, sep);
+                while (true) {
+                    if (roots.contains(new Key(key.backend, key.identity, path))) return true;
+                    int i = path.lastIndexOf(sep, path.length() - sep.length() - 1);
+                    if (i < 0) return false;
+                    String parent = i == 0 ? sep : path.substring(0, i);
+                    if (parent.equals(path)) return false;
+                    path = parent;
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Get the time-to-live of entries for the given backend type.
+     * @param backend The {@link UFile} subclass.
+     * @return The time-to-live in milliseconds.
+     */
+    public long getTtl(Class<? extends UFile> backend) {
+        return ttls.getOrDefault(backend, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Set the time-to-live of entries for the given backend type. A value of 0 disables caching for the backend.
+     * @param backend The {@link UFile} subclass.
+     * @param ttlMillis The time-to-live in milliseconds.
+     */
+    public void setTtl(Class<? extends UFile> backend, long ttlMillis) {
+        ttls.put(backend, ttlMillis);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private static String stripTrailingSep(String path, String sep) {
+        return path.length() > sep.length() && path.endsWith(sep) ? path.substring(0, path.length() - sep.length()) : path;
+    }
+
+    private static Key keyOf(UFile file) {
+        return new Key(file.getClass(), file.getBackendIdentity(), file.getPath());
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.sf298.universal.file.services;
+
+import com.sf298.universal.file.enums.UFChangeType;
+import com.sf298.universal.file.model.responses.UFChangeEvent;
+import com.sf298.universal.file.model.responses.UFMetadata;
+import com.sf298.universal.file.model.responses.UFOperationResult;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * A {@link UFChangeFeed} for backends that cannot report changes themselves. It keeps a snapshot of the type, size
+ * and modification time of everything below the root, and finds changes by listing the tree again and comparing.
+ * <p>
+ * The position is the snapshot itself, compressed and Base64 encoded, so it grows with the size of the tree.
+ * Directories are reported when created or deleted, not when their contents change.
+ */
+public class UFSnapshotChangeFeed extends UFChangeFeed {
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The last seen state of each entry, by its path relative to the root.
+     */
+    private final NavigableMap<String, Entry> snapshot = new TreeMap<>();
+
+    /**
+     * Opens a feed from a saved position.
+     * @param root The directory to report changes below.
+     * @param position A position from {@link #getPosition()}, or null to take a snapshot and report only later
+     *                 changes.
+     * @throws Exception If the snapshot could not be taken.
+     * @throws IllegalArgumentException If the position is not a snapshot position.
+     */
+    public UFSnapshotChangeFeed(UFile root, String position) throws Exception {
+        this(root);
+        if (isNull(position)) {
+            rescan("", true);
+        } else {
+            restore(position);
+        }
+    }
+
+    /**
+     * Creates a feed with an empty snapshot, for subclasses that set it up themselves.
+     */
+    protected UFSnapshotChangeFeed(UFile root) {
+        super(root);
+    }
+
+    @Override
+    public UFOperationResult<List<UFChangeEvent>> poll() {
+        return new UFOperationResult<>(root, () -> rescan("", true));
+    }
+
+    @Override
+    public synchronized String getPosition() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeBoolean(e.getValue().directory);
+                out.writeLong(e.getValue().length);
+                out.writeLong(e.getValue().lastModified);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Replaces the snapshot with the one saved in <code>position</code>.
+     * @throws IllegalArgumentException If the position is not a snapshot position.
+     */
+    protected synchronized void restore(String position) {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(position))))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported change feed position");
+            }
+            snapshot.clear();
+            for (int i = in.readInt(); i > 0; i--) {
+                snapshot.put(in.readUTF(), new Entry(in.readBoolean(), in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid change feed position", e);
+        }
+    }
+
+    /**
+     * Lists a directory again, reports how it differs from the snapshot and updates the snapshot to match.
+     * Directories that are new, or gone, are also compared in full.
+     * @param dir The path of the directory relative to the root, empty for the root.
+     * @param recursive Whether to compare everything below <code>dir</code> or only its direct children.
+     * @return The changes found.
+     */
+    protected synchronized List<UFChangeEvent> rescan(String dir, boolean recursive) throws Exception {
+        String sep = root.getFileSep();
+        UFile dirFile = dir.isEmpty() ? root : root.stepInto(dir);
+
+        // the snapshot entries covered by this listing
+        String prefix = dir.isEmpty() ? "" : dir + sep;
+        Map<String, Entry> before = new HashMap<>();
+        snapshot.subMap(prefix, true, prefix + Character.MAX_VALUE, false).forEach((path, entry) -> {
+            if (recursive || parentOf(path).equals(dir)) {
+                before.put(path, entry);
+            }
+        });
+
+        // compare the listing against them
+        List<UFChangeEvent> events = new ArrayList<>();
+        Map<String, Entry> updated = new HashMap<>();
+        List<String> newDirs = new ArrayList<>();
+        try (Stream<UFile> listing = list(dirFile, recursive)) {
+            for (UFile child : (Iterable<UFile>) listing::iterator) {
+                String path = relativePath(child);
+                Entry now = Entry.of(child.readMetadata());
+                Entry was = before.remove(path);
+                if (isNull(was)) {
+                    events.add(new UFChangeEvent(child, UFChangeType.CREATED));
+                    if (now.directory && !recursive) {
+                        newDirs.add(path);
+                    }
+                } else if (was.directory != now.directory || (!now.directory && !was.equals(now))) {
+                    events.add(new UFChangeEvent(child, UFChangeType.MODIFIED));
+                }
+                updated.put(path, now);
+            }
+        }
+
+        // whatever was not listed is gone, along with everything below it
+        Set<String> removed = new HashSet<>(before.keySet());
+        if (!recursive) {
+            before.forEach((path, entry) -> {
+                if (entry.directory) {
+                    removed.addAll(snapshot.subMap(path + sep, true, path + sep + Character.MAX_VALUE, false).keySet());
+                }
+            });
+        }
+        removed.forEach(path -> events.add(new UFChangeEvent(root.stepInto(path), UFChangeType.DELETED)));
+
+        snapshot.keySet().removeAll(removed);
+        snapshot.putAll(updated);
+        for (String newDir : newDirs) {
+            events.addAll(rescan(newDir, true));
+        }
+        return events;
+    }
+
+    /**
+     * Gets the path of a file below the root, relative to the root.
+     */
+    protected String relativePath(UFile file) {
+        String sep = root.getFileSep();
+        String path = file.getPath().substring(Math.min(root.getPath().length(), file.getPath().length()));
+        while (path.startsWith(sep)) {
+            path = path.substring(sep.length());
+        }
+        return path;
+    }
+
+    private String parentOf(String path) {
+        int i = path.lastIndexOf(root.getFileSep());
+        return i < 0 ? "" : path.substring(0, i);
+    }
+
+    private static Stream<UFile> list(UFile dir, boolean recursive) throws Exception {
+        if (nonNull(dir.getParent()) && !dir.exists().getResultOrDefault(true)) {
+            return Stream.empty();
+        }
+        UFOperationResult<Stream<UFile>> listing = recursive ? dir.streamFilesRecursive() : dir.streamFiles();
+        if (!listing.isSuccessful()) {
+            throw listing.getException();
+        }
+        return listing.getResult();
+    }
+
+    private static class Entry {
+        private final boolean directory;
+        private final long length;
+        private final long lastModified;
+
+        private Entry(boolean directory, long length, long lastModified) {
+            this.directory = directory;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        private static Entry of(UFMetadata metadata) {
+            return new Entry(
+                    metadata.isFolder(),
+                    nonNull(metadata.getLength()) ? metadata.getLength() : -1,
+                    nonNull(metadata.getLastModified()) ? metadata.getLastModified().getTime() : -1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry entry)) return false;
+            return directory == entry.directory && length == entry.length && lastModified == entry.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(directory, length, lastModified);
+        }
+    }
+
+}
@@ -1,14 +1,21 @@
 package com.sf298.universal.file.services;
 
+import com.sf298.universal.file.enums.UFCopyOption;
 import com.sf298.universal.file.model.functions.UFileFilter;
+import com.sf298.universal.file.model.functions.UFileGlobFilter;
 import com.sf298.universal.file.model.functions.UFilenameFilter;
 import com.sf298.universal.file.model.responses.*;
+import com.sf298.universal.file.utils.BoundedInputStream;
+import com.sf298.universal.file.utils.PagedIterator;
 
 import java.io.*;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import static java.util.Arrays.asList;
 import static java.util.Objects.isNull;
@@ -18,8 +25,8 @@ public abstract class UFile {
 
     private final String path;
     private int bufferSize;
+    private SegmentedTransfer segmentedTransfer = SegmentedTransfer.DEFAULT;
     private boolean hasAppended = false;
-    public UFMetadata metadataCache;
 
     public UFile(String path) {
         this(path, 1024);
@@ -50,6 +57,22 @@ public abstract class UFile {
         this.bufferSize = bufferSize;
     }
 
+    /**
+     * Get the settings used to copy large files from this {@link UFile} in parallel segments.
+     * @return The {@link SegmentedTransfer} settings.
+     */
+    public SegmentedTransfer getSegmentedTransfer() {
+        return segmentedTransfer;
+    }
+
+    /**
+     * Set the settings used to copy large files from this {@link UFile} in parallel segments.
+     * @param segmentedTransfer The {@link SegmentedTransfer} settings.
+     */
+    public void setSegmentedTransfer(SegmentedTransfer segmentedTransfer) {
+        this.segmentedTransfer = segmentedTransfer;
+    }
+
     /**
      * Gets the file separator used by this instance of {@link UFile}.
      * @return The file separator.
@@ -88,6 +111,44 @@ public abstract class UFile {
     }
 
 
+    /**
+     * Identifies the server or account this {@link UFile} belongs to, so metadata of equal paths on different
+     * backends is cached separately in {@link UFMetadataCache}.
+     * @return An object with value-based equality, the same for every {@link UFile} on the same backend.
+     */
+    protected Object getBackendIdentity() {
+        return "";
+    }
+
+    /**
+     * Fetches the metadata of this file from the backend, bypassing the cache.
+     * @return The metadata, or {@link UFMetadata#NOT_EXIST} if the file does not exist.
+     * @throws Exception If the backend could not be reached.
+     */
+    protected abstract UFMetadata fetchMetadata() throws Exception;
+
+    /**
+     * Gets the metadata of this file from {@link UFMetadataCache#SHARED}, fetching and caching it on a miss.
+     * @return The metadata, or {@link UFMetadata#NOT_EXIST} if the file does not exist.
+     * @throws Exception If the backend could not be reached.
+     */
+    protected UFMetadata readMetadata() throws Exception {
+        UFMetadata metadata = UFMetadataCache.SHARED.get(this);
+        if (isNull(metadata)) {
+            metadata = fetchMetadata();
+            UFMetadataCache.SHARED.put(this, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Stores already known metadata of this file in {@link UFMetadataCache#SHARED}.
+     * @param metadata The metadata, e.g. from a directory listing or a completed upload.
+     */
+    protected void cacheMetadata(UFMetadata metadata) {
+        UFMetadataCache.SHARED.put(this, metadata);
+    }
+
     /**
      * Checks if this file exists.
      * @return Returns <code>true</code> if the file exists, otherwise <code>false</code>>.
@@ -235,6 +296,59 @@ public abstract class UFile {
      */
     public abstract UFOperationResult<Boolean> deleteRecursive();
 
+    /**
+     * Deletes the file or directory denoted by this {@link UFile} and everything below it, reporting the outcome
+     * for each path. The tree is gathered in one walk, files are deleted in parallel, then directories are
+     * removed deepest first and this directory last.
+     * @return One result per deleted path. A directory whose contents could not all be deleted fails too.
+     */
+    public UFOperationBatchResult<Boolean> deleteRecursiveBatch() {
+        UFOperationBatchResult<Boolean> results = new UFOperationBatchResult<>();
+        if (!isDirectory().getResultOrDefault(false)) {
+            results.add(delete());
+            return results;
+        }
+
+        List<UFile> entries = Collections.synchronizedList(new ArrayList<>());
+        UFOperationResult<Boolean> walked = listFilesRecursiveBatch(batch -> entries.addAll(asList(batch)));
+        if (!walked.isSuccessful()) {
+            results.add(new UFOperationResult<>(this, walked.getException()));
+            return results;
+        }
+
+        Map<Boolean, List<UFile>> grouped = entries.stream()
+                .collect(Collectors.partitioningBy(f -> f.isDirectory().getResultOrDefault(false)));
+        ForkJoinPool pool = new ForkJoinPool(getWalkParallelism());
+        try {
+            results.addAll(pool.submit(() -> grouped.get(false).parallelStream().map(UFile::delete).toList()).join());
+
+            // directories at the same depth cannot contain each other, so each level is removed in parallel
+            Map<Integer, List<UFile>> byDepth = grouped.get(true).stream()
+                    .collect(Collectors.groupingBy(f -> f.getPath().split(Pattern.quote(getFileSep())).length));
+            byDepth.keySet().stream().sorted(Comparator.reverseOrder()).forEach(depth -> results.addAll(
+                    pool.submit(() -> byDepth.get(depth).parallelStream().map(UFile::delete).toList()).join()));
+        } finally {
+            pool.shutdown();
+        }
+
+        results.add(delete());
+        UFMetadataCache.SHARED.invalidateTree(this);
+        return results;
+    }
+
+    /**
+     * Reduces the per-path results of {@link #deleteRecursiveBatch()} to the result of {@link #deleteRecursive()}.
+     * @param results The per-path results.
+     * @return The first failure, otherwise <code>true</code> if every path was deleted.
+     */
+    protected UFOperationResult<Boolean> summariseDelete(UFOperationBatchResult<Boolean> results) {
+        List<UFOperationResult<Boolean>> failed = results.getFailed();
+        if (!failed.isEmpty()) {
+            return new UFOperationResult<>(this, failed.get(0).getException());
+        }
+        return UFOperationResult.createBoolOperation(this, results.stream().allMatch(UFOperationResult::getResult));
+    }
+
 
     /**
      * Returns an array of strings naming the files and directories in the
@@ -294,6 +408,13 @@ public abstract class UFile {
      * @see java.nio.file.Files#newDirectoryStream(Path,String)
      */
     public UFOperationResult<String[]> list(UFilenameFilter filter) {
+        if (filter instanceof UFileGlobFilter glob) {
+            UFOperationResult<UFile[]> files = listFilesMatching(glob);
+            if (!files.isSuccessful()) {
+                return new UFOperationResult<>(this, files.getException());
+            }
+            return new UFOperationResult<>(this, () -> Arrays.stream(files.getResult()).map(UFile::getName).toArray(String[]::new));
+        }
         return new UFOperationResult<>(this,
                 () -> Arrays.stream(list().getResult())
                         .filter(f -> filter.accept(this, f))
@@ -357,6 +478,9 @@ public abstract class UFile {
      *          the directory
      */
     public UFOperationResult<UFile[]> listFiles(UFilenameFilter filter) {
+        if (filter instanceof UFileGlobFilter glob) {
+            return listFilesMatching(glob);
+        }
         return new UFOperationResult<>(this,
                 () -> Arrays.stream(listFiles().getResult())
                         .filter(f -> filter.accept(this, f.getName()))
@@ -397,6 +521,21 @@ public abstract class UFile {
         );
     }
 
+    /**
+     * Lists the files and directories in this directory whose names match <code>glob</code>. Backends that can
+     * match patterns on the server override this so non-matching entries are never transferred.
+     * Used by {@link #list(UFilenameFilter)} and {@link #listFiles(UFilenameFilter)} for {@link UFileGlobFilter}s.
+     * @param glob The pattern to match names against.
+     * @return The matching entries.
+     */
+    protected UFOperationResult<UFile[]> listFilesMatching(UFileGlobFilter glob) {
+        return new UFOperationResult<>(this,
+                () -> Arrays.stream(listFiles().getResult())
+                        .filter(f -> glob.accept(this, f.getName()))
+                        .toArray(UFile[]::new)
+        );
+    }
+
     /**
      * List all files recursively.
      */
@@ -411,15 +550,72 @@ public abstract class UFile {
     }
 
     /**
-     * List all files recursively in batches.
+     * List all files recursively in batches, listing several directories at once with a {@link UFileTreeWalker}.
+     * @param resultCallback Receives the entries of each directory. Never called concurrently.
      */
     public UFOperationResult<Boolean> listFilesRecursiveBatch(Consumer<UFile[]> resultCallback) {
+        return new UFileTreeWalker(getWalkParallelism()).walk(this, resultCallback);
+    }
+
+    /**
+     * Get the number of directories of this backend that {@link #listFilesRecursiveBatch(Consumer)} lists at once.
+     * @return The parallelism of recursive listings.
+     */
+    public int getWalkParallelism() {
+        return UFileTreeWalker.DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Lists the files and directories in this directory as a lazily fetched {@link Stream}. Backends that
+     * paginate their listings fetch each page as the stream reaches it, so memory stays bounded by the page size.
+     * <p>
+     * The stream should be closed once consumed, e.g. with try-with-resources, to release any open handles.
+     * Pages that fail to load part way through throw {@link PagedIterator.PageFetchException}.
+     * @return The stream of children, or the exception if the listing could not be started.
+     */
+    public UFOperationResult<Stream<UFile>> streamFiles() {
         UFOperationResult<UFile[]> files = listFiles();
-        if (files.isSuccessful()) {
-            resultCallback.accept(files.getResult());
-            return UFOperationResult.createBoolOperation(this, true);
+        if (!files.isSuccessful()) {
+            return new UFOperationResult<>(this, files.getException());
+        }
+        return new UFOperationResult<>(this, () -> Arrays.stream(files.getResult()));
+    }
+
+    /**
+     * Lists every file and directory below this directory as a lazily fetched {@link Stream}, depth first.
+     * Only the listings along the current branch are held in memory.
+     * <p>
+     * The stream should be closed once consumed, e.g. with try-with-resources, to release any open handles.
+     * Listings that fail part way through throw {@link PagedIterator.PageFetchException}.
+     * @return The stream of descendants, or the exception if the listing could not be started.
+     */
+    public UFOperationResult<Stream<UFile>> streamFilesRecursive() {
+        UFOperationResult<Stream<UFile>> children = streamFiles();
+        if (!children.isSuccessful()) {
+            return children;
         }
-        return new UFOperationResult<>(this, files.getException());
+        return new UFOperationResult<>(this, () -> children.getResult().flatMap(child -> {
+            if (!child.isDirectory().getResultOrDefault(false)) {
+                return Stream.of(child);
+            }
+            UFOperationResult<Stream<UFile>> descendants = child.streamFilesRecursive();
+            if (!descendants.isSuccessful()) {
+                throw new PagedIterator.PageFetchException(descendants.getException());
+            }
+            return Stream.concat(Stream.of(child), descendants.getResult());
+        }));
+    }
+
+    /**
+     * Opens a feed of the files and directories created, modified and deleted below this directory.
+     * By default changes are found by comparing a snapshot of the tree against a fresh listing, see
+     * {@link UFSnapshotChangeFeed}. Backends that can report changes themselves override this.
+     * @param position A position from {@link UFChangeFeed#getPosition()} to resume from, or null to report only
+     *                 changes made from now on.
+     * @return The feed, or the exception if it could not be opened.
+     */
+    public UFOperationResult<UFChangeFeed> changeFeed(String position) {
+        return new UFOperationResult<>(this, () -> new UFSnapshotChangeFeed(this, position));
     }
 
 
@@ -466,6 +662,30 @@ public abstract class UFile {
      */
     public abstract InputStream read() throws IOException;
 
+    /**
+     * Opens an {@link InputStream} over a byte range of the file denoted by this {@link UFile}.
+     * If {@link #supportsRangedRead()} is <code>false</code> the range is emulated by reading and discarding the
+     * first <code>offset</code> bytes of {@link #read()}.
+     * @param offset The position of the first byte to read.
+     * @param length The maximum number of bytes to read, or <code>-1</code> to read to the end of the file.
+     * @return Returns the opened stream. Finish with {@link #readClose()}, as with {@link #read()}.
+     * @throws IOException If an I/O error occurred.
+     */
+    public InputStream read(long offset, long length) throws IOException {
+        InputStream in = read();
+        BoundedInputStream.skipFully(in, offset);
+        return length < 0 ? in : new BoundedInputStream(in, length);
+    }
+
+    /**
+     * Checks whether {@link #read(long, long)} is served natively by this backend.
+     * @return <code>true</code> if ranged reads start at the offset without transferring the bytes before it,
+     *         <code>false</code> if they are emulated by skipping.
+     */
+    public boolean supportsRangedRead() {
+        return false;
+    }
+
     /**
      * Finishes up any operations remaining after the {@link InputStream} returned by {@link #read()} is closed.
      */
@@ -527,7 +747,8 @@ public abstract class UFile {
 
     /**
      * Copies the file denoted by this {@link UFile} to the <code>destination</code> {@link UFile}.
-     * Works for copying files between kinds of destinations.
+     * Works for copying files between kinds of destinations. Files larger than the {@link SegmentedTransfer}
+     * threshold are fetched in parallel segments when this backend supports ranged reads.
      * @param destination The target destination. Must not exist prior to copy.
      */
     public UFOperationResult<Boolean> copyTo(UFile destination) {
@@ -540,6 +761,16 @@ public abstract class UFile {
         }
 
         return new UFOperationResult<>(this, () -> {
+            long length = segmentedTransfer.accepts(this) ? length().getResultOrDefault(-1L) : -1L;
+            if (segmentedTransfer.accepts(this, length)) {
+                OutputStream out = new BufferedOutputStream(destination.write(), getBufferSize());
+                segmentedTransfer.transfer(this, length, out);
+                out.flush();
+                out.close();
+                destination.writeClose();
+                return true;
+            }
+
             InputStream in = new BufferedInputStream(this.read());
             OutputStream out = new BufferedOutputStream(destination.write());
 
@@ -558,6 +789,31 @@ public abstract class UFile {
         });
     }
 
+    /**
+     * Copies the file denoted by this {@link UFile} to the <code>destination</code> {@link UFile}, as with
+     * {@link #copyTo(UFile)}.
+     * @param destination The target destination.
+     * @param options {@link UFCopyOption#SKIP_IF_UNCHANGED} returns <code>true</code> without transferring when
+     *                {@link #contentMatches(UFile)} on the destination reports the same content.
+     */
+    public UFOperationResult<Boolean> copyTo(UFile destination, UFCopyOption... options) {
+        if (asList(options).contains(UFCopyOption.SKIP_IF_UNCHANGED)
+                && destination.contentMatches(this).getResultOrDefault(false)) {
+            return UFOperationResult.createBoolOperation(this, true);
+        }
+        return copyTo(destination);
+    }
+
+    /**
+     * Checks whether this file holds the same content as <code>source</code>, without transferring this file.
+     * Backends that cannot tell cheaply report <code>false</code>.
+     * @param source The file to compare against.
+     * @return <code>true</code> if both files are known to hold the same bytes.
+     */
+    public UFOperationResult<Boolean> contentMatches(UFile source) {
+        return UFOperationResult.createBoolOperation(this, false);
+    }
+
     /**
      * Moves the file denoted by this {@link UFile} to the <code>destination</code> {@link UFile}.
      * Works for moving files between kinds of destinations. Moves the file using the native move function if possible.
@@ -571,6 +827,8 @@ public abstract class UFile {
             return new UFOperationResult<>(this, new FileNotFoundException("Copy failed: reason unknown"));
         }
 
+        UFMetadataCache.SHARED.invalidateTree(destination);
+
         UFOperationResult<Boolean> deleteResult = deleteRecursive();
         if(!deleteResult.isSuccessful()) {
             return new UFOperationResult<>(this, deleteResult.getException());
@@ -612,10 +870,10 @@ public abstract class UFile {
     public abstract UFile goTo(String path);
 
     /**
-     * Clears any caching used in this {@link UFile}.
+     * Clears any cached metadata of the file denoted by this {@link UFile}.
      */
     public void clearCache() {
-        metadataCache = null;
+        UFMetadataCache.SHARED.invalidate(this);
     }
 
     /**
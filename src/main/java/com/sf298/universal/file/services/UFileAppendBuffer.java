@@ -0,0 +1,207 @@
+package com.sf298.universal.file.services;
+
+import com.sf298.universal.file.model.responses.UFOperationResult;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Collects many small appends to one {@link UFile} and writes them with a single {@link UFile#append()} per flush.
+ * Backends without a native append rewrite the whole file on every {@link UFile#append()}, so this turns one
+ * rewrite per append into one rewrite per flush.
+ * <p>
+ * Use it like {@link UFile#append()}: write to the stream returned by {@link #append()}, then call
+ * {@link #appendClose()}. The buffered bytes are written to the target when any of these happen:
+ * <ul>
+ *     <li>{@link #appendClose()} leaves at least <code>flushSize</code> bytes buffered,</li>
+ *     <li><code>flushIntervalMillis</code> has passed since the first unflushed byte was buffered,</li>
+ *     <li>{@link #flush()} or {@link #close()} is called.</li>
+ * </ul>
+ * Buffered bytes are kept in memory up to <code>memoryLimit</code> and spill into a local temporary file beyond
+ * that. Neither survives a crash: appended bytes are only durable once a flush has returned successfully. A failed
+ * flush keeps the bytes buffered so the next flush retries them.
+ */
+public class UFileAppendBuffer implements Closeable {
+
+    public static final long DEFAULT_FLUSH_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 60_000;
+    public static final int DEFAULT_MEMORY_LIMIT = 1024 * 1024;
+
+    private static final ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "UFile-append-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final UFile target;
+    private final long flushSize;
+    private final long flushIntervalMillis;
+    private final int memoryLimit;
+
+    private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File spillFile;
+    private OutputStream spill;
+    private long buffered = 0;
+    private ScheduledFuture<?> scheduledFlush;
+
+    public UFileAppendBuffer(UFile target) {
+        this(target, DEFAULT_FLUSH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MEMORY_LIMIT);
+    }
+
+    /**
+     * @param target The file to append to.
+     * @param flushSize The number of buffered bytes that triggers a flush on {@link #appendClose()}.
+     * @param flushIntervalMillis The maximum time bytes stay buffered before a flush, or 0 to only flush on size.
+     * @param memoryLimit The number of bytes held in memory before spilling to a local temporary file.
+     */
+    public UFileAppendBuffer(UFile target, long flushSize, long flushIntervalMillis, int memoryLimit) {
+        this.target = target;
+        this.flushSize = flushSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Get the file this buffer appends to.
+     * @return The target {@link UFile}.
+     */
+    public UFile getTarget() {
+        return target;
+    }
+
+    /**
+     * Get the number of bytes appended but not yet flushed.
+     * @return The buffered length in bytes.
+     */
+    public synchronized long getBufferedLength() {
+        return buffered;
+    }
+
+    /**
+     * Opens an {@link OutputStream} that adds to this buffer. Closing the stream is optional.
+     * @return Returns the opened stream.
+     */
+    public OutputStream append() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                buffer(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Finishes an append started with {@link #append()}, flushing if <code>flushSize</code> bytes are buffered.
+     */
+    public void appendClose() {
+        boolean full;
+        synchronized (this) {
+            full = buffered >= flushSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes every buffered byte to the end of the target with one {@link UFile#append()}.
+     * @return <code>true</code> once the bytes have been written, or the exception if the append failed.
+     */
+    public synchronized UFOperationResult<Boolean> flush() {
+        if (nonNull(scheduledFlush)) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (buffered == 0) {
+            return UFOperationResult.createBoolOperation(target, true);
+        }
+
+        UFOperationResult<Boolean> result = new UFOperationResult<>(target, () -> {
+            if (nonNull(spill)) {
+                // closing writes out the spilled bytes, later appends reopen the file
+                OutputStream spilled = spill;
+                spill = null;
+                spilled.close();
+            }
+            OutputStream out = target.append();
+            if (nonNull(spillFile)) {
+                Files.copy(spillFile.toPath(), out);
+            }
+            memory.writeTo(out);
+            out.flush();
+            out.close();
+            target.appendClose();
+            return true;
+        });
+
+        if (result.isSuccessful()) {
+            reset();
+        } else {
+            scheduleFlush();
+        }
+        return result;
+    }
+
+    /**
+     * Flushes any buffered bytes and releases the spill file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        UFOperationResult<Boolean> result = flush();
+        if (!result.isSuccessful()) {
+            throw new IOException("Could not flush appends to "+target, result.getException());
+        }
+    }
+
+    private synchronized void buffer(byte[] b, int off, int len) throws IOException {
+        if (isNull(spillFile) && memory.size() + len > memoryLimit) {
+            spillFile = File.createTempFile("ufile-append", ".tmp");
+            spillFile.deleteOnExit();
+            spill = new BufferedOutputStream(new FileOutputStream(spillFile));
+            memory.writeTo(spill);
+            memory.reset();
+        }
+
+        if (nonNull(spillFile)) {
+            if (isNull(spill)) {
+                spill = new BufferedOutputStream(new FileOutputStream(spillFile, true));
+            }
+            spill.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+
+        if (buffered == 0) {
+            scheduleFlush();
+        }
+        buffered += len;
+    }
+
+    private void scheduleFlush() {
+        if (flushIntervalMillis > 0 && isNull(scheduledFlush)) {
+            scheduledFlush = flushTimer.schedule(this::flush, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reset() {
+        memory.reset();
+        buffered = 0;
+        if (nonNull(spillFile)) {
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
+}
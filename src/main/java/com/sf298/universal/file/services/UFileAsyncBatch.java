@@ -0,0 +1,256 @@
+package com.sf298.universal.file.services;
+
+import com.sf298.universal.file.model.functions.UFileFilter;
+import com.sf298.universal.file.model.functions.UFilenameFilter;
+import com.sf298.universal.file.model.inputs.BatchMove;
+import com.sf298.universal.file.model.responses.UFOperationBatchResult;
+import com.sf298.universal.file.model.responses.UFOperationResult;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Runs the operations of {@link UFileBatch} concurrently, one task per target, and completes a future once every
+ * target has finished. Results are always listed in the order of the targets.
+ * <p>
+ * At most <code>maxInFlightPerBackend</code> operations run at once against the same server or account; the rest
+ * wait in a queue without holding a thread. Copies and moves take a slot on both the source and the destination
+ * backend. By default tasks run on virtual threads when the JVM supports them
+ * (Java 21+), otherwise on a cached pool of daemon threads.
+ */
+public class UFileAsyncBatch<T extends UFile> {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_BACKEND = 16;
+
+    private final Executor executor;
+    private final int maxInFlightPerBackend;
+    private final Map<Object, Limiter> limiters = new ConcurrentHashMap<>();
+    private final AtomicLong limiterCount = new AtomicLong();
+
+    public UFileAsyncBatch() {
+        this(defaultExecutor(), DEFAULT_MAX_IN_FLIGHT_PER_BACKEND);
+    }
+
+    /**
+     * @param executor Runs each operation.
+     * @param maxInFlightPerBackend The maximum number of operations running at once against one server or account.
+     */
+    public UFileAsyncBatch(Executor executor, int maxInFlightPerBackend) {
+        if (maxInFlightPerBackend <= 0) {
+            throw new IllegalArgumentException("Max in flight must be positive");
+        }
+        this.executor = executor;
+        this.maxInFlightPerBackend = maxInFlightPerBackend;
+    }
+
+    public int getMaxInFlightPerBackend() {
+        return maxInFlightPerBackend;
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> exists(List<T> targets) {
+        return apply(targets, UFile::exists);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> isDirectory(List<T> targets) {
+        return apply(targets, UFile::isDirectory);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> isFile(List<T> targets) {
+        return apply(targets, UFile::isFile);
+    }
+
+
+    public CompletableFuture<UFOperationBatchResult<Date>> lastModified(List<T> targets) {
+        return apply(targets, UFile::lastModified);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Long>> length(List<T> targets) {
+        return apply(targets, UFile::length);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> createNewFile(List<T> targets) {
+        return apply(targets, UFile::createNewFile);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> delete(List<T> targets) {
+        return apply(targets, UFile::delete);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> deleteRecursive(List<T> targets) {
+        return apply(targets, UFile::deleteRecursive);
+    }
+
+
+    public CompletableFuture<UFOperationBatchResult<String[]>> list(List<T> targets) {
+        return apply(targets, UFile::list);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<String[]>> list(List<T> targets, UFilenameFilter filter) {
+        return apply(targets, t -> t.list(filter));
+    }
+
+    public CompletableFuture<UFOperationBatchResult<UFile[]>> listFiles(List<T> targets) {
+        return apply(targets, UFile::listFiles);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<UFile[]>> listFiles(List<T> targets, UFilenameFilter filter) {
+        return apply(targets, t -> t.listFiles(filter));
+    }
+
+    public CompletableFuture<UFOperationBatchResult<UFile[]>> listFiles(List<T> targets, UFileFilter filter) {
+        return apply(targets, t -> t.listFiles(filter));
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> mkdir(List<T> targets) {
+        return apply(targets, UFile::mkdir);
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> mkdirs(List<T> targets) {
+        return apply(targets, UFile::mkdirs);
+    }
+
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> copyTo(List<BatchMove> targets) {
+        return collect(targets.stream()
+                .map(t -> submit(List.of(backendOf(t.from), backendOf(t.to)), t.from, () -> t.from.copyTo(t.to)))
+                .collect(Collectors.toList()));
+    }
+
+    public CompletableFuture<UFOperationBatchResult<Boolean>> moveTo(List<BatchMove> targets) {
+        return collect(targets.stream()
+                .map(t -> submit(List.of(backendOf(t.from), backendOf(t.to)), t.from, () -> t.from.moveTo(t.to)))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Runs <code>operation</code> on every target concurrently.
+     * @param targets The files to operate on.
+     * @param operation The operation to run on each file.
+     * @return Completes with one result per target, in the order of <code>targets</code>.
+     */
+    public <R> CompletableFuture<UFOperationBatchResult<R>> apply(List<T> targets, Function<T, UFOperationResult<R>> operation) {
+        return collect(submitEach(targets, operation));
+    }
+
+    /**
+     * Runs <code>operation</code> on every target concurrently, with a future for each target.
+     * @param targets The files to operate on.
+     * @param operation The operation to run on each file.
+     * @return One future per target, in the order of <code>targets</code>.
+     */
+    public <R> List<CompletableFuture<UFOperationResult<R>>> submitEach(List<T> targets, Function<T, UFOperationResult<R>> operation) {
+        return targets.stream()
+                .map(t -> submit(List.of(backendOf(t)), t, () -> operation.apply(t)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Runs <code>operation</code> once it holds a slot on every backend it uses.
+     */
+    private <R> CompletableFuture<UFOperationResult<R>> submit(List<Object> backends, UFile target, Supplier<UFOperationResult<R>> operation) {
+        CompletableFuture<UFOperationResult<R>> future = new CompletableFuture<>();
+        // slots are always taken in the order the limiters were created, so two tasks cannot wait on each other
+        List<Limiter> held = backends.stream()
+                .distinct()
+                .map(b -> limiters.computeIfAbsent(b, k -> new Limiter(limiterCount.getAndIncrement())))
+                .sorted(Comparator.comparingLong(l -> l.order))
+                .collect(Collectors.toList());
+        acquire(held, 0, () -> {
+            try {
+                executor.execute(() -> {
+                    try {
+                        future.complete(operation.get());
+                    } catch (Exception e) {
+                        future.complete(new UFOperationResult<>(target, e));
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        held.forEach(Limiter::finished);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.complete(new UFOperationResult<>(target, e));
+                held.forEach(Limiter::finished);
+            }
+        });
+        return future;
+    }
+
+    private void acquire(List<Limiter> held, int i, Runnable task) {
+        if (i == held.size()) {
+            task.run();
+        } else {
+            held.get(i).start(() -> acquire(held, i + 1, task));
+        }
+    }
+
+    private static <R> CompletableFuture<UFOperationBatchResult<R>> collect(List<CompletableFuture<UFOperationResult<R>>> futures) {
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                .thenApply(v -> futures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toCollection(UFOperationBatchResult::new)));
+    }
+
+    private static Object backendOf(UFile file) {
+        return List.of(file.getClass(), file.getBackendIdentity());
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor where the JVM provides one, otherwise a cached daemon thread pool.
+     * @return The executor used by {@link #UFileAsyncBatch()}.
+     */
+    public static Executor defaultExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "UFile-async-batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Starts tasks for one backend while fewer than <code>maxInFlightPerBackend</code> are running, queueing the rest.
+     */
+    private class Limiter {
+        private final long order;
+        private final Deque<Runnable> waiting = new ArrayDeque<>();
+        private int running = 0;
+
+        Limiter(long order) {
+            this.order = order;
+        }
+
+        void start(Runnable task) {
+            synchronized (this) {
+                if (running >= maxInFlightPerBackend) {
+                    waiting.add(task);
+                    return;
+                }
+                running++;
+            }
+            task.run();
+        }
+
+        void finished() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (isNull(next)) {
+                    running--;
+                    return;
+                }
+            }
+            next.run();
+        }
+    }
+
+}
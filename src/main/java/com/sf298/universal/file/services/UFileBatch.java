@@ -1,5 +1,6 @@
 package com.sf298.universal.file.services;
 
+import com.sf298.universal.file.enums.UFCopyOption;
 import com.sf298.universal.file.model.functions.UFileFilter;
 import com.sf298.universal.file.model.functions.UFilenameFilter;
 import com.sf298.universal.file.model.inputs.BatchMove;
@@ -7,9 +8,16 @@ import com.sf298.universal.file.model.responses.UFOperationBatchResult;
 import com.sf298.universal.file.model.responses.UFOperationResult;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+import static com.sf298.universal.file.model.responses.UFOperationResult.createBoolOperation;
+import static com.sf298.universal.file.utils.ListUtils.zipToPairs;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.partitioningBy;
+
 public class UFileBatch<T extends UFile> {
 
     public UFOperationBatchResult<Boolean> exists(List<T> targets) {
@@ -70,7 +78,7 @@ public class UFileBatch<T extends UFile> {
 
     public UFOperationBatchResult<String[]> list(List<T> targets, UFilenameFilter filter) {
         return targets.stream()
-                .map(UFile::list)
+                .map(t -> t.list(filter))
                 .collect(Collectors.toCollection(UFOperationBatchResult::new));
     }
 
@@ -82,13 +90,13 @@ public class UFileBatch<T extends UFile> {
 
     public UFOperationBatchResult<UFile[]> listFiles(List<T> targets, UFilenameFilter filter) {
         return targets.stream()
-                .map(UFile::listFiles)
+                .map(t -> t.listFiles(filter))
                 .collect(Collectors.toCollection(UFOperationBatchResult::new));
     }
 
     public UFOperationBatchResult<UFile[]> listFiles(List<T> targets, UFileFilter filter) {
         return targets.stream()
-                .map(UFile::listFiles)
+                .map(t -> t.listFiles(filter))
                 .collect(Collectors.toCollection(UFOperationBatchResult::new));
     }
 
@@ -111,10 +119,36 @@ public class UFileBatch<T extends UFile> {
                 .collect(Collectors.toCollection(UFOperationBatchResult::new));
     }
 
+    public UFOperationBatchResult<Boolean> copyTo(List<BatchMove> targets, UFCopyOption... options) {
+        if (!asList(options).contains(UFCopyOption.SKIP_IF_UNCHANGED)) {
+            return copyTo(targets);
+        }
+
+        // split into transfers the destination already matches vs transfers to run
+        Map<Boolean, List<BatchMove>> grouped = targets.stream()
+                .collect(partitioningBy(t -> t.to.contentMatches(t.from).getResultOrDefault(false)));
+
+        Map<BatchMove, UFOperationResult<Boolean>> generated = new HashMap<>();
+        grouped.get(true).forEach(t -> generated.put(t, createBoolOperation(t.from, true)));
+        List<BatchMove> changed = grouped.get(false);
+        zipToPairs(changed, copyTo(changed), generated::put);
+
+        return order(targets, generated);
+    }
+
     public UFOperationBatchResult<Boolean> moveTo(List<BatchMove> targets) {
         return targets.stream()
                 .map(t -> t.from.moveTo(t.to))
                 .collect(Collectors.toCollection(UFOperationBatchResult::new));
     }
 
+    /**
+     * Lists the results in <code>map</code> in the order of their keys in <code>ordering</code>.
+     */
+    protected <I,R> UFOperationBatchResult<R> order(List<I> ordering, Map<I, UFOperationResult<R>> map) {
+        return ordering.stream()
+                .map(map::get)
+                .collect(Collectors.toCollection(UFOperationBatchResult::new));
+    }
+
 }
@@ -7,90 +7,129 @@ import com.sf298.universal.file.services.platforms.UFileFtp;
 import com.sf298.universal.file.services.platforms.UFileLocalDisk;
 
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
 
 import static com.sf298.universal.file.services.platforms.UFileDropboxBatch.DROPBOX_BATCH;
 import static com.sf298.universal.file.services.platforms.UFileFtpBatch.FTP_BATCH;
 import static com.sf298.universal.file.services.platforms.UFileLocalDiskBatch.LOCAL_DISK_BATCH;
+import static java.util.Objects.nonNull;
 
+/**
+ * Runs batch operations over {@link UFile}s from any mix of backends. The targets are split by backend, each
+ * backend's {@link UFileBatch} runs its share at the same time as the others, and the results are returned in the
+ * order of the targets.
+ * <p>
+ * Backends are looked up in a registry of {@link UFileBatch}es by {@link UFile} subclass. Types without a
+ * registered batch use a plain {@link UFileBatch}.
+ */
 public class UFileManager {
 
-    public static UFOperationBatchResult<Boolean> existsBatch(List<UFile> targets) {
-        if (targets.isEmpty()) {
-            return new UFOperationBatchResult<>();
+    private static final Map<Class<? extends UFile>, UFileBatch<? extends UFile>> batches = new ConcurrentHashMap<>();
+    private static final UFileBatch<UFile> DEFAULT_BATCH = new UFileBatch<>();
+
+    private static final ExecutorService dispatcher = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "UFile-manager");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        registerBatch(UFileLocalDisk.class, LOCAL_DISK_BATCH);
+        registerBatch(UFileFtp.class, FTP_BATCH);
+        registerBatch(UFileDropbox.class, DROPBOX_BATCH);
+    }
+
+    /**
+     * Registers the {@link UFileBatch} used for a backend, replacing any previous one.
+     * @param type The {@link UFile} subclass of the backend. Also used for its subclasses.
+     * @param batch The batch implementation for the backend.
+     */
+    public static <T extends UFile> void registerBatch(Class<T> type, UFileBatch<T> batch) {
+        batches.put(type, batch);
+    }
+
+    /**
+     * Gets the {@link UFileBatch} used for a backend.
+     * @param type The {@link UFile} subclass of the backend.
+     * @return The registered batch of the type or its nearest registered superclass, otherwise a plain
+     *         {@link UFileBatch}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends UFile> UFileBatch<T> getBatch(Class<T> type) {
+        for (Class<?> c = type; nonNull(c) && UFile.class.isAssignableFrom(c); c = c.getSuperclass()) {
+            UFileBatch<? extends UFile> batch = batches.get(c);
+            if (nonNull(batch)) {
+                return (UFileBatch<T>) batch;
+            }
         }
-        Stream<UFOperationBatchResult<Boolean>> stream = Stream.of(
-                LOCAL_DISK_BATCH.exists(filterByUFileType(targets, UFileLocalDisk.class)),
-                FTP_BATCH       .exists(filterByUFileType(targets, UFileFtp.class)),
-                DROPBOX_BATCH   .exists(filterByUFileType(targets, UFileDropbox.class))
-        );
-        return sortResultStream(targets, stream);
+        return (UFileBatch<T>) DEFAULT_BATCH;
+    }
+
+    public static UFOperationBatchResult<Boolean> existsBatch(List<UFile> targets) {
+        return dispatch(targets, UFileBatch::exists);
     }
 
     public static UFOperationBatchResult<Boolean> isDirectoryBatch(List<UFile> targets) {
-        if (targets.isEmpty()) {
-            return new UFOperationBatchResult<>();
-        }
-        Stream<UFOperationBatchResult<Boolean>> stream = Stream.of(
-                LOCAL_DISK_BATCH.isDirectory(filterByUFileType(targets, UFileLocalDisk.class)),
-                FTP_BATCH       .isDirectory(filterByUFileType(targets, UFileFtp.class)),
-                DROPBOX_BATCH   .isDirectory(filterByUFileType(targets, UFileDropbox.class))
-        );
-        return sortResultStream(targets, stream);
+        return dispatch(targets, UFileBatch::isDirectory);
     }
 
     public static UFOperationBatchResult<Boolean> isFileBatch(List<UFile> targets) {
-        if (targets.isEmpty()) {
-            return new UFOperationBatchResult<>();
-        }
-        Stream<UFOperationBatchResult<Boolean>> stream = Stream.of(
-                LOCAL_DISK_BATCH.isFile(filterByUFileType(targets, UFileLocalDisk.class)),
-                FTP_BATCH       .isFile(filterByUFileType(targets, UFileFtp.class)),
-                DROPBOX_BATCH   .isFile(filterByUFileType(targets, UFileDropbox.class))
-        );
-        return sortResultStream(targets, stream);
+        return dispatch(targets, UFileBatch::isFile);
     }
 
     public static UFOperationBatchResult<Boolean> mkdirBatch(List<UFile> targets) {
-        if (targets.isEmpty()) {
-            return new UFOperationBatchResult<>();
-        }
-        Stream<UFOperationBatchResult<Boolean>> stream = Stream.of(
-                LOCAL_DISK_BATCH.mkdir(filterByUFileType(targets, UFileLocalDisk.class)),
-                FTP_BATCH       .mkdir(filterByUFileType(targets, UFileFtp.class)),
-                DROPBOX_BATCH   .mkdir(filterByUFileType(targets, UFileDropbox.class))
-        );
-        return sortResultStream(targets, stream);
+        return dispatch(targets, UFileBatch::mkdir);
     }
 
     public static UFOperationBatchResult<Boolean> mkdirsBatch(List<UFile> targets) {
+        return dispatch(targets, UFileBatch::mkdirs);
+    }
+
+    /**
+     * Splits <code>targets</code> by backend, runs <code>operation</code> on each backend's share concurrently and
+     * puts every result back at the index of its target.
+     */
+    @SuppressWarnings("unchecked")
+    private static <R> UFOperationBatchResult<R> dispatch(List<UFile> targets,
+            BiFunction<UFileBatch<UFile>, List<UFile>, UFOperationBatchResult<R>> operation) {
         if (targets.isEmpty()) {
             return new UFOperationBatchResult<>();
         }
-        Stream<UFOperationBatchResult<Boolean>> stream = Stream.of(
-                LOCAL_DISK_BATCH.mkdirs(filterByUFileType(targets, UFileLocalDisk.class)),
-                FTP_BATCH       .mkdirs(filterByUFileType(targets, UFileFtp.class)),
-                DROPBOX_BATCH   .mkdirs(filterByUFileType(targets, UFileDropbox.class))
-        );
-        return sortResultStream(targets, stream);
-    }
 
-    private static <T extends UFile> List<T> filterByUFileType(List<UFile> targets, Class<T> clazz) {
-        return targets.stream()
-                .filter(clazz::isInstance)
-                .map(clazz::cast)
-                .collect(Collectors.toList());
-    }
+        // the indices of the targets handled by each batch, in input order
+        Map<UFileBatch<UFile>, List<Integer>> grouped = new LinkedHashMap<>();
+        for (int i = 0; i < targets.size(); i++) {
+            UFileBatch<UFile> batch = (UFileBatch<UFile>) getBatch(targets.get(i).getClass());
+            grouped.computeIfAbsent(batch, b -> new ArrayList<>()).add(i);
+        }
 
-    private static <T> UFOperationBatchResult<T> sortResultStream(List<UFile> targets, Stream<UFOperationBatchResult<T>> stream) {
-        Map<UFile, UFOperationResult<T>> resultMap = stream.flatMap(Collection::stream)
-            .collect(Collectors.toMap(UFOperationResult::getActionedFile, Function.identity()));
+        List<UFOperationResult<R>> results = new ArrayList<>(Collections.nCopies(targets.size(), null));
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        grouped.forEach((batch, indices) -> {
+            List<UFile> share = indices.stream().map(targets::get).toList();
+            running.add(CompletableFuture
+                    .supplyAsync(() -> operation.apply(batch, share), dispatcher)
+                    .thenAccept(shareResults -> {
+                        for (int i = 0; i < indices.size(); i++) {
+                            results.set(indices.get(i), shareResults.get(i));
+                        }
+                    })
+                    .exceptionally(e -> {
+                        Throwable cause = nonNull(e.getCause()) ? e.getCause() : e;
+                        Exception exception = cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+                        indices.forEach(i -> results.set(i, new UFOperationResult<>(targets.get(i), exception)));
+                        return null;
+                    }));
+        });
+        CompletableFuture.allOf(running.toArray(CompletableFuture[]::new)).join();
 
-        return targets.stream()
-                .map(resultMap::get)
-                .collect(Collectors.toCollection(UFOperationBatchResult::new));
+        UFOperationBatchResult<R> ordered = new UFOperationBatchResult<>();
+        ordered.addAll(results);
+        return ordered;
     }
 
 }
@@ -0,0 +1,135 @@
+package com.sf298.universal.file.services;
+
+import com.sf298.universal.file.model.responses.UFOperationResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Walks a directory tree, listing up to <code>parallelism</code> directories at once on a {@link ForkJoinPool}.
+ * <p>
+ * Each directory listing is passed to the callback as one batch, in no particular order. Calls to the callback
+ * are never made concurrently, so it does not need to be thread-safe. Directories matching the prune predicate
+ * are still passed to the callback but are not listed, which skips their whole subtree.
+ */
+public class UFileTreeWalker {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private int parallelism;
+    private Predicate<UFile> prune = dir -> false;
+    private int maxDepth = Integer.MAX_VALUE;
+
+    public UFileTreeWalker() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param parallelism The number of directories listed at once.
+     */
+    public UFileTreeWalker(int parallelism) {
+        setParallelism(parallelism);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public Predicate<UFile> getPrune() {
+        return prune;
+    }
+
+    /**
+     * Set the predicate deciding which directories not to descend into.
+     * @param prune Returns <code>true</code> for directories whose contents should be skipped.
+     */
+    public void setPrune(Predicate<UFile> prune) {
+        this.prune = prune;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Set how many levels below the root are listed. A depth of 1 lists only the root's children.
+     * @param maxDepth The maximum depth, at least 1.
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth <= 0) {
+            throw new IllegalArgumentException("Max depth must be positive");
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Lists every file and directory below <code>root</code>.
+     * A directory that cannot be listed does not stop the walk of the rest of the tree.
+     * @param root The directory to walk.
+     * @param resultCallback Receives the entries of each listed directory.
+     * @return <code>true</code> if every directory was listed, otherwise the first exception encountered.
+     */
+    public UFOperationResult<Boolean> walk(UFile root, Consumer<UFile[]> resultCallback) {
+        ConcurrentLinkedQueue<Exception> failures = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ListTask(root, 1, resultCallback, failures));
+        } finally {
+            pool.shutdown();
+        }
+
+        if (!failures.isEmpty()) {
+            return new UFOperationResult<>(root, failures.peek());
+        }
+        return UFOperationResult.createBoolOperation(root, true);
+    }
+
+    @SuppressWarnings("serial")
+    private class ListTask extends RecursiveAction {
+        private final UFile dir;
+        private final int depth;
+        private final Consumer<UFile[]> resultCallback;
+        private final ConcurrentLinkedQueue<Exception> failures;
+
+        private ListTask(UFile dir, int depth, Consumer<UFile[]> resultCallback, ConcurrentLinkedQueue<Exception> failures) {
+            this.dir = dir;
+            this.depth = depth;
+            this.resultCallback = resultCallback;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            UFOperationResult<UFile[]> children = dir.listFiles();
+            if (!children.isSuccessful()) {
+                failures.add(children.getException());
+                return;
+            }
+            synchronized (resultCallback) {
+                resultCallback.accept(children.getResult());
+            }
+            if (depth >= maxDepth) return;
+
+            List<ListTask> subtasks = new ArrayList<>();
+            for (UFile child : children.getResult()) {
+                if (child.isDirectory().getResultOrDefault(false) && !prune.test(child)) {
+                    subtasks.add(new ListTask(child, depth + 1, resultCallback, failures));
+                }
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+}
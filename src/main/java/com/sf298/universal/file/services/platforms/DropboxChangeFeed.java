@@ -0,0 +1,135 @@
+package com.sf298.universal.file.services.platforms;
+
+import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.http.StandardHttpRequestor;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.*;
+import com.sf298.universal.file.enums.UFChangeType;
+import com.sf298.universal.file.model.responses.UFChangeEvent;
+import com.sf298.universal.file.model.responses.UFOperationResult;
+import com.sf298.universal.file.services.UFChangeFeed;
+import com.sf298.universal.file.services.UFMetadataCache;
+import com.sf298.universal.file.services.UFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * A change feed following a recursive Dropbox list-folder cursor. The cursor is the position.
+ * <p>
+ * Each poll fetches only the entries changed since the cursor. Waiting for changes uses the longpoll endpoint,
+ * which holds the request open until something changes rather than polling repeatedly. Dropbox does not say whether
+ * a file is new or changed, so both are reported as {@link UFChangeType#MODIFIED}. Folders only appear when
+ * created.
+ */
+class DropboxChangeFeed extends UFChangeFeed {
+
+    /**
+     * The range of timeouts, in seconds, the longpoll endpoint accepts.
+     */
+    static final long MIN_LONGPOLL_SECONDS = 30;
+    static final long MAX_LONGPOLL_SECONDS = 480;
+
+    /**
+     * Dropbox may hold a longpoll up to 90 seconds past its timeout, longer than the default two minute read timeout.
+     */
+    static final long LONGPOLL_READ_TIMEOUT_SECONDS = MAX_LONGPOLL_SECONDS + 90 + 30;
+
+    private final UFileDropbox dropboxRoot;
+    private final DbxClientV2 longpollClient;
+    private String cursor;
+    private long backoffUntil = 0;
+
+    DropboxChangeFeed(UFileDropbox root, String position) throws Exception {
+        super(root);
+        this.dropboxRoot = root;
+        this.longpollClient = root.newClient(DbxRequestConfig.newBuilder("UFile/testing")
+                .withHttpRequestor(new StandardHttpRequestor(StandardHttpRequestor.Config.DEFAULT_INSTANCE.copy()
+                        .withReadTimeout(LONGPOLL_READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        .build()))
+                .build());
+        this.cursor = nonNull(position) ? position : root.callApi(5, () -> root.getClient().files()
+                .listFolderGetLatestCursorBuilder(root.getDropboxPath())
+                .withRecursive(true)
+                .start()
+                .getCursor());
+    }
+
+    @Override
+    public synchronized UFOperationResult<List<UFChangeEvent>> poll() {
+        return new UFOperationResult<>(root, () -> {
+            DbxUserFilesRequests files = dropboxRoot.getClient().files();
+            List<UFChangeEvent> events = new ArrayList<>();
+            ListFolderResult page;
+            do {
+                String current = cursor;
+                page = dropboxRoot.callApi(5, () -> files.listFolderContinue(current));
+                List<UFile> deleted = new ArrayList<>();
+                for (Metadata entry : page.getEntries()) {
+                    UFChangeEvent event = toEvent(entry);
+                    if (event.getType() == UFChangeType.DELETED) {
+                        deleted.add(event.getFile());
+                    }
+                    events.add(event);
+                }
+                UFMetadataCache.SHARED.invalidateTrees(deleted);
+                cursor = page.getCursor();
+            } while (page.getHasMore());
+            return events;
+        });
+    }
+
+    /**
+     * Waits with the longpoll endpoint when <code>timeoutMillis</code> is within the range it accepts, otherwise
+     * polls repeatedly. A failed longpoll is not retried, as the wait has already been spent.
+     */
+    @Override
+    public UFOperationResult<List<UFChangeEvent>> poll(long timeoutMillis) {
+        if (timeoutMillis < MIN_LONGPOLL_SECONDS * 1000) {
+            return super.poll(timeoutMillis);
+        }
+
+        UFOperationResult<Boolean> changed = new UFOperationResult<>(root, () -> {
+            // dropbox asks clients to wait between longpolls when busy
+            long wait = backoffUntil - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+
+            String current = getPosition();
+            long timeoutSeconds = Math.min(timeoutMillis / 1000, MAX_LONGPOLL_SECONDS);
+            ListFolderLongpollResult result;
+            try {
+                result = longpollClient.files().listFolderLongpoll(current, timeoutSeconds);
+            } catch (RateLimitException e) {
+                backoffUntil = System.currentTimeMillis() + e.getBackoffMillis();
+                throw e;
+            }
+            backoffUntil = isNull(result.getBackoff()) ? 0 : System.currentTimeMillis() + result.getBackoff() * 1000;
+            return result.getChanges();
+        });
+        if (!changed.isSuccessful()) {
+            return new UFOperationResult<>(root, changed.getException());
+        }
+        return changed.getResult() ? poll() : new UFOperationResult<>(root, () -> new ArrayList<>());
+    }
+
+    @Override
+    public synchronized String getPosition() {
+        return cursor;
+    }
+
+    private UFChangeEvent toEvent(Metadata entry) {
+        UFileDropbox file = dropboxRoot.fromMetadata(entry);
+        if (entry instanceof DeletedMetadata) {
+            return new UFChangeEvent(file, UFChangeType.DELETED);
+        }
+        return new UFChangeEvent(file, entry instanceof FolderMetadata ? UFChangeType.CREATED : UFChangeType.MODIFIED);
+    }
+
+}
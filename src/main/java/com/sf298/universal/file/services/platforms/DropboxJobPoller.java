@@ -0,0 +1,97 @@
+package com.sf298.universal.file.services.platforms;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.RateLimitException;
+import com.sf298.universal.file.model.functions.ExceptionNet;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Waits for Dropbox async jobs (move, copy, delete, create-folder and upload finish batches) to finish, polling
+ * every outstanding job from a small shared scheduler rather than a sleeping thread per job.
+ * <p>
+ * Each job is first checked after {@link #INITIAL_DELAY_MILLIS}, and the delay grows by {@link #BACKOFF_FACTOR}
+ * after every check that finds it still running, up to {@link #MAX_DELAY_MILLIS}. Short jobs are noticed quickly
+ * while long ones cost few calls. A rate-limited check is retried once the requested backoff has passed.
+ * <p>
+ * The returned futures complete on the polling threads, so work that follows a job should run asynchronously.
+ */
+class DropboxJobPoller {
+
+    static final long INITIAL_DELAY_MILLIS = 100;
+    static final long MAX_DELAY_MILLIS = 5_000;
+    static final double BACKOFF_FACTOR = 1.5;
+    static final int DEFAULT_THREADS = 2;
+
+    static final DropboxJobPoller SHARED = new DropboxJobPoller(DEFAULT_THREADS, INITIAL_DELAY_MILLIS, MAX_DELAY_MILLIS);
+
+    private final ScheduledExecutorService scheduler;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * @param threads The number of threads making status checks.
+     * @param initialDelayMillis The delay before the first check of a job.
+     * @param maxDelayMillis The longest delay between checks.
+     */
+    DropboxJobPoller(int threads, long initialDelayMillis, long maxDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.scheduler = Executors.newScheduledThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "UFile-dropbox-jobs");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Polls a job until it is no longer in progress.
+     * @param check Fetches the status of the job.
+     * @param inProgress Tells whether a status means the job is still running.
+     * @return Completes with the first status that is not in progress, or exceptionally if a check fails.
+     *         Cancelling it stops the polling.
+     */
+    <S> CompletableFuture<S> poll(ExceptionNet<S, DbxException> check, Predicate<S> inProgress) {
+        CompletableFuture<S> job = new CompletableFuture<>();
+        outstanding.incrementAndGet();
+        job.whenComplete((status, e) -> outstanding.decrementAndGet());
+        schedule(check, inProgress, job, initialDelayMillis);
+        return job;
+    }
+
+    /**
+     * Get the number of jobs being polled.
+     * @return The number of jobs whose futures have not completed.
+     */
+    int getOutstandingCount() {
+        return outstanding.get();
+    }
+
+    private <S> void schedule(ExceptionNet<S, DbxException> check, Predicate<S> inProgress, CompletableFuture<S> job, long delay) {
+        scheduler.schedule(() -> {
+            if (job.isDone()) return;
+
+            long nextDelay = Math.min((long) (delay * BACKOFF_FACTOR), maxDelayMillis);
+            try {
+                S status = check.run();
+                if (!inProgress.test(status)) {
+                    job.complete(status);
+                    return;
+                }
+            } catch (RateLimitException e) {
+                nextDelay = Math.max(nextDelay, e.getBackoffMillis());
+            } catch (Throwable e) {
+                job.completeExceptionally(e);
+                return;
+            }
+            schedule(check, inProgress, job, nextDelay);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+}
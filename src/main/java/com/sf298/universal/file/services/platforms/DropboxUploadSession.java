@@ -0,0 +1,217 @@
+package com.sf298.universal.file.services.platforms;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.v2.files.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * An {@link OutputStream} that uploads to Dropbox through an upload session, sending the data in fixed-size
+ * chunks as it is written. Nothing is visible at the destination until {@link #finish()} commits the session.
+ * <p>
+ * Files that never fill a chunk are sent as a single upload, so the chunk size is also the threshold above which
+ * the upload session is used. Full chunks are uploaded in the background while the caller fills the next one, with
+ * up to <code>maxChunksInFlight</code> chunks queued. Dropbox requires the chunks of a session to arrive in order,
+ * so they are sent one after another. Each chunk is retried on its own if it fails.
+ */
+class DropboxUploadSession extends OutputStream {
+
+    /**
+     * The default chunk size. Dropbox recommends multiples of 4MB.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    static final int DEFAULT_CHUNKS_IN_FLIGHT = 2;
+    static final int CHUNK_RETRIES = 5;
+
+    /**
+     * The size the buffer starts at before growing to the chunk size.
+     */
+    static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService chunkUploader = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "UFile-dropbox-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DbxUserFilesRequests files;
+    private final CommitInfo commit;
+    private final int chunkSize;
+    private final int maxChunksInFlight;
+    private final Semaphore chunksInFlight;
+    private final BlockingQueue<byte[]> freeBuffers = new LinkedBlockingQueue<>();
+    private int buffersAllocated = 1;
+
+    private byte[] buffer;
+    private int count = 0;
+    private long offset = 0;
+    private volatile String sessionId;
+    private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+
+    DropboxUploadSession(DbxUserFilesRequests files, CommitInfo commit) {
+        this(files, commit, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS_IN_FLIGHT);
+    }
+
+    DropboxUploadSession(DbxUserFilesRequests files, CommitInfo commit, int chunkSize, int maxChunksInFlight) {
+        this.files = files;
+        this.commit = commit;
+        this.chunkSize = chunkSize;
+        this.maxChunksInFlight = maxChunksInFlight;
+        this.chunksInFlight = new Semaphore(maxChunksInFlight);
+        this.buffer = new byte[Math.min(chunkSize, INITIAL_BUFFER_SIZE)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunkSize) {
+            sendChunk();
+        }
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chunkSize) {
+                sendChunk();
+            }
+            int step = Math.min(len, chunkSize - count);
+            ensureCapacity(count + step);
+            System.arraycopy(b, off, buffer, count, step);
+            count += step;
+            off += step;
+            len -= step;
+        }
+    }
+
+    /**
+     * Does not commit anything. Buffered bytes are kept until {@link #finish()}.
+     */
+    @Override
+    public void close() {}
+
+    /**
+     * Waits for the queued chunks, sends any buffered bytes and commits the upload to the path in the
+     * {@link CommitInfo}.
+     * @return The metadata of the committed file.
+     */
+    FileMetadata finish() throws DbxException, IOException {
+        awaitPending();
+
+        if (isNull(sessionId)) {
+            return files.uploadBuilder(commit.getPath())
+                    .withMode(commit.getMode())
+                    .withAutorename(commit.getAutorename())
+                    .uploadAndFinish(new ByteArrayInputStream(buffer, 0, count));
+        }
+
+        UploadSessionCursor cursor = new UploadSessionCursor(sessionId, offset);
+        return files.uploadSessionFinish(cursor, commit).uploadAndFinish(new ByteArrayInputStream(buffer, 0, count));
+    }
+
+    /**
+     * Grows the first buffer towards the chunk size as it fills, so small files never allocate a whole chunk.
+     */
+    private void ensureCapacity(int needed) {
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, (int) Math.min(chunkSize, Math.max(needed, 2L * buffer.length)));
+        }
+    }
+
+    /**
+     * Queues the full buffer as the next chunk of the session and switches to a free buffer.
+     */
+    private void sendChunk() throws IOException {
+        if (pending.isCompletedExceptionally()) {
+            awaitPending();
+        }
+
+        try {
+            chunksInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to upload "+commit.getPath(), e);
+        }
+
+        byte[] chunk = buffer;
+        int length = count;
+        long chunkOffset = offset;
+        pending = pending.thenRunAsync(() -> uploadChunk(chunk, length, chunkOffset), chunkUploader);
+        pending.whenComplete((v, ex) -> {
+            freeBuffers.offer(chunk);
+            chunksInFlight.release();
+        });
+
+        offset += length;
+        count = 0;
+        buffer = nextBuffer();
+    }
+
+    private byte[] nextBuffer() throws IOException {
+        byte[] free = freeBuffers.poll();
+        if (nonNull(free)) return free;
+        if (buffersAllocated <= maxChunksInFlight) {
+            buffersAllocated++;
+            return new byte[chunkSize];
+        }
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to upload "+commit.getPath(), e);
+        }
+    }
+
+    private void uploadChunk(byte[] chunk, int length, long chunkOffset) {
+        int attempt = 0;
+        while (true) {
+            try {
+                if (isNull(sessionId)) {
+                    sessionId = files.uploadSessionStart()
+                            .uploadAndFinish(new ByteArrayInputStream(chunk, 0, length))
+                            .getSessionId();
+                } else {
+                    files.uploadSessionAppendV2(new UploadSessionCursor(sessionId, chunkOffset))
+                            .uploadAndFinish(new ByteArrayInputStream(chunk, 0, length));
+                }
+                return;
+            } catch (UploadSessionLookupErrorException e) {
+                // a retried chunk that had already arrived is reported as an offset mismatch
+                if (e.errorValue.isIncorrectOffset()
+                        && e.errorValue.getIncorrectOffsetValue().getCorrectOffset() == chunkOffset + length) {
+                    return;
+                }
+                throw new CompletionException(e);
+            } catch (DbxException | IOException e) {
+                if (++attempt > CHUNK_RETRIES) {
+                    throw new CompletionException(e);
+                }
+                long sleepTime = (e instanceof RateLimitException) ? ((RateLimitException) e).getBackoffMillis() + 10 : attempt * 1000L;
+                try {
+                    Thread.sleep(sleepTime);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(ex);
+                }
+            }
+        }
+    }
+
+    private void awaitPending() throws IOException {
+        try {
+            pending.join();
+        } catch (CompletionException e) {
+            throw new IOException("Error uploading chunk of "+commit.getPath(), e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,340 @@
+package com.sf298.universal.file.services.platforms;
+
+import com.sf298.universal.file.model.connection.ConnectionDetails;
+import com.sf298.universal.file.model.functions.ThrowableFunction;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPClientConfig;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.sf298.universal.file.model.connection.ConnectionParam.*;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static org.apache.commons.net.ftp.FTPReply.*;
+
+/**
+ * A pool of logged in {@link FTPClient} connections, kept separately for each server.
+ * <p>
+ * A connection is borrowed for one command, or for the whole life of a data stream, and then released back to the
+ * pool. At most <code>maxSize</code> connections are open to each server; further borrowers wait until one is
+ * released, for up to <code>borrowTimeoutMillis</code>. Connections idle for longer than <code>idleTimeoutMillis</code> are closed, and a connection that has
+ * been idle for more than <code>healthCheckMillis</code> is checked with a <code>NOOP</code> before it is handed out.
+ */
+public class FtpConnectionPool {
+
+    public static final int DEFAULT_MAX_SIZE = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000;
+    public static final long DEFAULT_HEALTH_CHECK_MILLIS = 5_000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 60_000;
+
+    // created before SHARED, whose constructor schedules eviction on it
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "UFile-ftp-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The pool used by every {@link UFileFtp}.
+     */
+    public static final FtpConnectionPool SHARED = new FtpConnectionPool();
+
+    private record IdleClient(FTPClient client, long since) {}
+
+    private static class Server {
+        private final Deque<IdleClient> idle = new ArrayDeque<>();
+        private int open = 0;
+    }
+
+    private final Map<ConnectionDetails, Server> servers = new ConcurrentHashMap<>();
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private volatile long healthCheckMillis = DEFAULT_HEALTH_CHECK_MILLIS;
+    private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile long borrowTimeoutMillis = DEFAULT_BORROW_TIMEOUT_MILLIS;
+
+    public FtpConnectionPool() {
+        evictor.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the maximum number of connections open to each server.
+     * @return The maximum pool size per server.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Set the maximum number of connections open to each server.
+     * @param maxSize The maximum pool size per server.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive");
+        }
+        this.maxSize = maxSize;
+        servers.values().forEach(server -> {
+            synchronized (server) {
+                server.notifyAll();
+            }
+        });
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getHealthCheckMillis() {
+        return healthCheckMillis;
+    }
+
+    public void setHealthCheckMillis(long healthCheckMillis) {
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+        if (borrowTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Borrow timeout must be positive");
+        }
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    /**
+     * Borrows a connection to the server, waiting up to <code>borrowTimeoutMillis</code> if <code>maxSize</code>
+     * connections are already borrowed. Must be handed back with {@link #release(ConnectionDetails, FTPClient)} or
+     * {@link #invalidate(ConnectionDetails, FTPClient)}.
+     * @param login The server to connect to.
+     * @return A connected and logged in {@link FTPClient}.
+     * @throws IOException If a new connection could not be made, or none was released in time.
+     */
+    public FTPClient borrow(ConnectionDetails login) throws IOException {
+        Server server = servers.computeIfAbsent(login, l -> new Server());
+        long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+        while (true) {
+            IdleClient reused;
+            synchronized (server) {
+                while (server.idle.isEmpty() && server.open >= maxSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new IOException("Timed out waiting for a connection to " + login.get(HOST)
+                                + ", all " + maxSize + " are borrowed");
+                    }
+                    try {
+                        server.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for a connection to " + login.get(HOST), e);
+                    }
+                }
+                reused = server.idle.pollFirst();
+                if (isNull(reused)) {
+                    server.open++;
+                }
+            }
+
+            if (isNull(reused)) {
+                try {
+                    return connect(login);
+                } catch (IOException | RuntimeException e) {
+                    closed(server);
+                    throw e;
+                }
+            }
+            if (isHealthy(reused)) {
+                return reused.client;
+            }
+            disconnect(reused.client);
+            closed(server);
+        }
+    }
+
+    /**
+     * Hands a borrowed connection back to the pool for reuse.
+     * @param login The server the connection was borrowed for.
+     * @param client The borrowed connection.
+     */
+    public void release(ConnectionDetails login, FTPClient client) {
+        Server server = servers.get(login);
+        if (!client.isConnected()) {
+            closed(server);
+            return;
+        }
+        synchronized (server) {
+            server.idle.addFirst(new IdleClient(client, System.currentTimeMillis()));
+            server.notifyAll();
+        }
+    }
+
+    /**
+     * Closes a borrowed connection that is in an unknown state, freeing its place in the pool.
+     * @param login The server the connection was borrowed for.
+     * @param client The borrowed connection.
+     */
+    public void invalidate(ConnectionDetails login, FTPClient client) {
+        disconnect(client);
+        closed(servers.get(login));
+    }
+
+    /**
+     * Borrows a connection, runs <code>action</code> with it and releases it. The connection is closed instead if
+     * the action fails with an {@link IOException}.
+     * @param login The server to connect to.
+     * @param action The commands to send.
+     * @return The result of <code>action</code>.
+     * @throws Exception If the connection could not be made or the action failed.
+     */
+    public <T> T execute(ConnectionDetails login, ThrowableFunction<FTPClient, T> action) throws Exception {
+        FTPClient client = borrow(login);
+        try {
+            T result = action.apply(client);
+            release(login, client);
+            return result;
+        } catch (IOException e) {
+            invalidate(login, client);
+            throw e;
+        } catch (Exception | Error e) {
+            release(login, client);
+            throw e;
+        }
+    }
+
+    /**
+     * Logs out of and closes every idle connection to the server. Borrowed connections are closed when released.
+     * @param login The server to close connections to.
+     */
+    public void close(ConnectionDetails login) {
+        Server server = servers.get(login);
+        if (isNull(server)) return;
+
+        Deque<IdleClient> toClose;
+        synchronized (server) {
+            toClose = new ArrayDeque<>(server.idle);
+            server.open -= toClose.size();
+            server.idle.clear();
+            server.notifyAll();
+        }
+        toClose.forEach(idle -> {
+            try {
+                idle.client.logout();
+            } catch (IOException ignored) {}
+            disconnect(idle.client);
+        });
+    }
+
+    /**
+     * Get the number of connections currently open to the server, borrowed or idle.
+     * @param login The server.
+     * @return The number of open connections.
+     */
+    public int getOpenCount(ConnectionDetails login) {
+        Server server = servers.get(login);
+        if (isNull(server)) return 0;
+        synchronized (server) {
+            return server.open;
+        }
+    }
+
+    private boolean isHealthy(IdleClient idle) {
+        if (!idle.client.isConnected()) return false;
+        if (System.currentTimeMillis() - idle.since < healthCheckMillis) return true;
+        try {
+            return idle.client.sendNoOp();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        servers.values().forEach(server -> {
+            Deque<IdleClient> expired = new ArrayDeque<>();
+            synchronized (server) {
+                // the least recently released connections are at the end
+                while (!server.idle.isEmpty() && server.idle.peekLast().since < cutoff) {
+                    expired.add(server.idle.pollLast());
+                    server.open--;
+                }
+                if (!expired.isEmpty()) server.notifyAll();
+            }
+            expired.forEach(idle -> disconnect(idle.client));
+        });
+    }
+
+    private void closed(Server server) {
+        if (isNull(server)) return;
+        synchronized (server) {
+            server.open--;
+            server.notifyAll();
+        }
+    }
+
+    private FTPClient connect(ConnectionDetails login) throws IOException {
+        FTPClient client = new FTPClient();
+        client.configure(new FTPClientConfig());
+        client.setListHiddenFiles(true);
+        client.setConnectTimeout(connectTimeoutMillis);
+
+        try {
+            if (login.containsKey(PORT)) {
+                client.connect(login.get(HOST), Integer.parseInt(login.get(PORT)));
+            } else {
+                client.connect(login.get(HOST));
+            }
+
+            if (client.getReplyCode() != SERVICE_READY) {
+                throw new IOException("Failed to connect to " + login.get(HOST) + ": " + client.getReplyString());
+            }
+
+            if (nonNull(login.get(USERNAME))) {
+                client.login(login.get(USERNAME), login.get(PASSWORD));
+                if (client.getReplyCode() == NOT_LOGGED_IN) {
+                    throw new RuntimeException("Bad login! code: "+client.getReplyCode());
+                } else if (client.getReplyCode() != USER_LOGGED_IN) {
+                    throw new IOException("Failed to login as " + login.get(USERNAME) + ": " + client.getReplyString());
+                }
+            }
+
+            // ranged reads restart at a byte offset, which is only meaningful in binary mode
+            client.setFileType(FTP.BINARY_FILE_TYPE);
+        } catch (IOException | RuntimeException e) {
+            disconnect(client);
+            throw e;
+        }
+        return client;
+    }
+
+    private static void disconnect(FTPClient client) {
+        if (client.isConnected()) {
+            try {
+                client.disconnect();
+            } catch (IOException ignored) {}
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.sf298.universal.file.services.platforms;
+
+import com.sf298.universal.file.enums.UFChangeType;
+import com.sf298.universal.file.model.responses.UFChangeEvent;
+import com.sf298.universal.file.model.responses.UFOperationResult;
+import com.sf298.universal.file.services.UFSnapshotChangeFeed;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * A change feed for local directories, driven by a {@link WatchService} on every directory of the tree.
+ * <p>
+ * Only directories the watch service reports events in are listed again, so a poll costs time in proportion to
+ * the changes rather than the size of the tree. The snapshot kept for the comparison is also the position, so a
+ * feed resumed from a saved position first compares the whole tree to catch changes made while nothing was
+ * watching. A full comparison is also made if the watch service drops events.
+ */
+class LocalDiskChangeFeed extends UFSnapshotChangeFeed {
+
+    private final Path rootPath;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+    private final List<UFChangeEvent> pending = new ArrayList<>();
+
+    LocalDiskChangeFeed(UFileLocalDisk root, String position) throws Exception {
+        super(root);
+        this.rootPath = Paths.get(root.getPath());
+        this.watcher = rootPath.getFileSystem().newWatchService();
+
+        // watch before scanning, so nothing changed during the scan is missed
+        try {
+            watchTree(rootPath);
+            if (isNull(position)) {
+                rescan("", true);
+            } else {
+                restore(position);
+                pending.addAll(rescan("", true));
+            }
+        } catch (Exception e) {
+            watcher.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public UFOperationResult<List<UFChangeEvent>> poll() {
+        return new UFOperationResult<>(root, () -> collect(watcher.poll()));
+    }
+
+    @Override
+    public UFOperationResult<List<UFChangeEvent>> poll(long timeoutMillis) {
+        return new UFOperationResult<>(root, () -> {
+            synchronized (this) {
+                if (!pending.isEmpty()) {
+                    return collect(null);
+                }
+            }
+            return collect(watcher.poll(timeoutMillis, TimeUnit.MILLISECONDS));
+        });
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Lists again the directories with events, starting with the key already taken from the watch service.
+     */
+    private synchronized List<UFChangeEvent> collect(WatchKey first) throws Exception {
+        Set<Path> dirs = new LinkedHashSet<>();
+        boolean overflow = false;
+        for (WatchKey key = first; nonNull(key); key = watcher.poll()) {
+            Path dir = watched.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    overflow = true;
+                } else if (nonNull(dir)) {
+                    dirs.add(dir);
+                }
+            }
+            if (!key.reset()) {
+                watched.remove(key);
+            }
+        }
+
+        List<UFChangeEvent> events = new ArrayList<>(pending);
+        pending.clear();
+        List<UFChangeEvent> found = new ArrayList<>();
+        if (overflow) {
+            found.addAll(rescan("", true));
+        } else {
+            for (Path dir : dirs) {
+                found.addAll(rescan(relativePath(new UFileLocalDisk(dir.toFile())), false));
+            }
+        }
+
+        // new directories need watching too
+        for (UFChangeEvent event : found) {
+            if (event.getType() == UFChangeType.CREATED && event.getFile().isDirectory().getResultOrDefault(false)) {
+                watchTree(Paths.get(event.getFile().getPath()));
+            }
+        }
+        events.addAll(found);
+        return events;
+    }
+
+    private void watchTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                // registering a directory again returns its existing key
+                watched.put(d.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // removed while walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
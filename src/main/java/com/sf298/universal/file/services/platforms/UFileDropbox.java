@@ -9,9 +9,14 @@ import com.dropbox.core.v2.DbxClientV2;
 import com.dropbox.core.v2.files.*;
 import com.sf298.universal.file.model.connection.ConnectionDetails;
 import com.sf298.universal.file.model.functions.ExceptionNet;
+import com.sf298.universal.file.model.functions.UFileGlobFilter;
 import com.sf298.universal.file.model.inputs.BatchMove;
 import com.sf298.universal.file.model.responses.*;
+import com.sf298.universal.file.services.UFChangeFeed;
+import com.sf298.universal.file.services.UFMetadataCache;
 import com.sf298.universal.file.services.UFile;
+import com.sf298.universal.file.utils.DropboxContentHasher;
+import com.sf298.universal.file.utils.PagedIterator;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -19,6 +24,7 @@ import java.io.OutputStream;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import static com.dropbox.core.v2.files.WriteMode.OVERWRITE;
 import static com.sf298.universal.file.model.connection.ConnectionParam.TOKEN;
@@ -28,6 +34,15 @@ import static java.util.Objects.nonNull;
 
 public class UFileDropbox extends UFile {
 
+    static {
+        UFMetadataCache.SHARED.setTtl(UFileDropbox.class, 60_000);
+    }
+
+    /**
+     * The number of entries requested per page when streaming a listing. Dropbox accepts at most 2000.
+     */
+    static final long LIST_PAGE_SIZE = 2000;
+
     /**
      * The cache of clients {@link DbxClientV2}. Reduces overhead of new connections.
      */
@@ -36,7 +51,8 @@ public class UFileDropbox extends UFile {
     private final DbxCredential credential;
     private DbxDownloader<FileMetadata> readDownloader;
     private DbxDownloader<FileMetadata> readThumbnailDownloader;
-    private UploadUploader writeUploader;
+    private DropboxUploadSession writeUploader;
+    private DropboxUploadSession appendUploader;
 
     public UFileDropbox(DbxCredential credential, String path) {
         super(path = path.toLowerCase());
@@ -99,7 +115,14 @@ public class UFileDropbox extends UFile {
     private UFileDropbox(DbxCredential credential, Metadata metadata) {
         super(metadata.getPathLower());
         this.credential = credential;
-        metadataCache = metadataToUFMetadata(metadata);
+        cacheMetadata(metadataToUFMetadata(metadata));
+    }
+
+    /**
+     * Creates a {@link UFile} for an entry of a listing of this account, caching its metadata.
+     */
+    UFileDropbox fromMetadata(Metadata metadata) {
+        return new UFileDropbox(credential, metadata);
     }
 
     public String getAccessToken() {
@@ -116,6 +139,15 @@ public class UFileDropbox extends UFile {
         return client;
     }
 
+    /**
+     * Creates an uncached client for this account, for calls that need other request settings than
+     * {@link #getClient()}.
+     * @param config The request settings.
+     */
+    DbxClientV2 newClient(DbxRequestConfig config) {
+        return new DbxClientV2(config, credential);
+    }
+
     @Override
     public String getFileSep() {
         return "/";
@@ -134,10 +166,7 @@ public class UFileDropbox extends UFile {
         if (getDropboxPath().equals(getFileSep()))
             return UFOperationResult.createBoolOperation(this, true);
 
-        return new UFOperationResult<>(this, () -> {
-            populateMetadataCache();
-            return nonNull(metadataCache);
-        });
+        return new UFOperationResult<>(this, () -> readMetadata().isExists());
     }
 
     @Override
@@ -145,10 +174,7 @@ public class UFileDropbox extends UFile {
         if (getDropboxPath().equals(getFileSep()))
             return UFOperationResult.createBoolOperation(this, true);
 
-        return new UFOperationResult<>(this, () -> {
-            populateMetadataCache();
-            return nonNull(metadataCache) && metadataCache.isFolder();
-        });
+        return new UFOperationResult<>(this, () -> readMetadata().isFolder());
     }
 
     @Override
@@ -156,10 +182,7 @@ public class UFileDropbox extends UFile {
         if (getDropboxPath().equals(getFileSep()))
             return UFOperationResult.createBoolOperation(this, false);
 
-        return new UFOperationResult<>(this, () -> {
-            populateMetadataCache();
-            return nonNull(metadataCache) && metadataCache.isFile();
-        });
+        return new UFOperationResult<>(this, () -> readMetadata().isFile());
     }
 
     @Override
@@ -174,13 +197,7 @@ public class UFileDropbox extends UFile {
 
     @Override
     public UFOperationResult<Date> lastModified() {
-        return new UFOperationResult<>(this, () -> {
-            populateMetadataCache();
-            if (nonNull(metadataCache)) {
-                return metadataCache.getLastModified();
-            }
-            return null;
-        });
+        return new UFOperationResult<>(this, () -> readMetadata().getLastModified());
     }
 
     @Override
@@ -191,11 +208,8 @@ public class UFileDropbox extends UFile {
     @Override
     public UFOperationResult<Long> length() {
         return new UFOperationResult<>(this, () -> {
-            populateMetadataCache();
-            if (nonNull(metadataCache)) {
-                return metadataCache.getLength();
-            }
-            return -1L;
+            UFMetadata metadata = readMetadata();
+            return metadata.isExists() ? metadata.getLength() : -1L;
         });
     }
 
@@ -210,12 +224,21 @@ public class UFileDropbox extends UFile {
         return DROPBOX_BATCH.deleteRecursive(List.of(this)).get(0);
     }
 
+    /**
+     * Dropbox deletes a folder and its contents in one operation, so there is a single result for the whole tree.
+     */
+    @Override
+    public UFOperationBatchResult<Boolean> deleteRecursiveBatch() {
+        return DROPBOX_BATCH.deleteRecursive(List.of(this));
+    }
+
     @Override
     public UFOperationResult<String[]> list() {
-        return new UFOperationResult<>(this, () -> {
-            ListFolderResult returned = callApi(5, () -> getClient().files().listFolder(getDropboxPath()));
-            return returned.getEntries().stream().map(Metadata::getName).toArray(String[]::new);
-        });
+        UFOperationResult<Stream<UFile>> children = streamFiles();
+        if (!children.isSuccessful()) {
+            return new UFOperationResult<>(this, children.getException());
+        }
+        return new UFOperationResult<>(this, () -> children.getResult().map(UFile::getName).toArray(String[]::new));
     }
 
     @Override
@@ -263,6 +286,70 @@ public class UFileDropbox extends UFile {
         return UFOperationResult.createBoolOperation(this, true);
     }
 
+    /**
+     * Dropbox cannot match patterns when listing, so a glob without wildcards is answered with a single metadata
+     * lookup of that name and anything else is filtered after listing.
+     */
+    @Override
+    protected UFOperationResult<UFile[]> listFilesMatching(UFileGlobFilter glob) {
+        if (!glob.isLiteral()) {
+            return super.listFilesMatching(glob);
+        }
+        return new UFOperationResult<>(this, () -> {
+            UFileDropbox child = (UFileDropbox) stepInto(glob.getGlob());
+            return child.readMetadata().isExists() ? new UFile[]{child} : new UFile[0];
+        });
+    }
+
+    @Override
+    public UFOperationResult<Stream<UFile>> streamFiles() {
+        return streamListing(false);
+    }
+
+    @Override
+    public UFOperationResult<Stream<UFile>> streamFilesRecursive() {
+        return streamListing(true);
+    }
+
+    /**
+     * Follows a Dropbox list-folder cursor, so each poll fetches only the entries that changed. The position is the
+     * cursor.
+     */
+    @Override
+    public UFOperationResult<UFChangeFeed> changeFeed(String position) {
+        return new UFOperationResult<>(this, () -> new DropboxChangeFeed(this, position));
+    }
+
+    /**
+     * Lists this folder one page at a time, following the cursor only as the stream is consumed.
+     * @param recursive Whether to include every descendant rather than only the direct children.
+     */
+    private UFOperationResult<Stream<UFile>> streamListing(boolean recursive) {
+        UFOperationResult<ListFolderResult> first = new UFOperationResult<>(this, () -> callApi(5, () ->
+                getClient().files().listFolderBuilder(getDropboxPath())
+                        .withRecursive(recursive)
+                        .withLimit(LIST_PAGE_SIZE)
+                        .start()));
+        if (!first.isSuccessful()) {
+            return new UFOperationResult<>(this, first.getException());
+        }
+
+        ListFolderResult[] page = {null};
+        return new UFOperationResult<>(this, () -> PagedIterator.stream(() -> {
+            if (isNull(page[0])) {
+                page[0] = first.getResult();
+            } else if (page[0].getHasMore()) {
+                String cursor = page[0].getCursor();
+                page[0] = callApi(5, () -> getClient().files().listFolderContinue(cursor));
+            } else {
+                return null;
+            }
+            return page[0].getEntries().stream()
+                    .map(m -> (UFile) new UFileDropbox(credential, m))
+                    .toList();
+        }));
+    }
+
     @Override
     public UFOperationResult<Boolean> mkdir() {
         if (getDropboxPath().equals(getFileSep()) || exists().getResult() || !getParentUFile().exists().getResult()) {
@@ -270,7 +357,8 @@ public class UFileDropbox extends UFile {
         }
 
         return new UFOperationResult<>(this, () -> {
-            callApi(5, () -> getClient().files().createFolderV2(getDropboxPath()));
+            CreateFolderResult result = callApi(5, () -> getClient().files().createFolderV2(getDropboxPath()));
+            cacheMetadata(metadataToUFMetadata(result.getMetadata()));
             return true;
         });
     }
@@ -283,6 +371,10 @@ public class UFileDropbox extends UFile {
 
         return new UFOperationResult<>(this, () -> {
             CreateFolderResult result = callApi(5, () -> getClient().files().createFolderV2(getDropboxPath()));
+            for (UFile parent = getParentUFile(); nonNull(parent); parent = parent.getParentUFile()) {
+                parent.clearCache();
+            }
+            cacheMetadata(metadataToUFMetadata(result.getMetadata()));
             return nonNull(result) && nonNull(result.getMetadata());
         });
     }
@@ -298,6 +390,25 @@ public class UFileDropbox extends UFile {
         }
     }
 
+    @Override
+    public InputStream read(long offset, long length) throws IOException {
+        if (length == 0) {
+            return InputStream.nullInputStream();
+        }
+        try {
+            DownloadBuilder builder = getClient().files().downloadBuilder(getDropboxPath());
+            readDownloader = (length < 0 ? builder.range(offset) : builder.range(offset, length)).start();
+            return readDownloader.getInputStream();
+        } catch (DbxException e) {
+            throw new IOException("Error reading "+this+" from offset "+offset, e);
+        }
+    }
+
+    @Override
+    public boolean supportsRangedRead() {
+        return true;
+    }
+
     @Override
     public void readClose() {
         if (isNull(readDownloader)) return;
@@ -324,14 +435,15 @@ public class UFileDropbox extends UFile {
         readThumbnailDownloader = null;
     }
 
+    /**
+     * Files up to {@link DropboxUploadSession#DEFAULT_CHUNK_SIZE} are sent as one upload. Larger files switch to an
+     * upload session and are sent in chunks, each retried on its own.
+     */
     @Override
     public OutputStream write() throws IOException {
-        try {
-            writeUploader = getClient().files().uploadBuilder(getDropboxPath()).withMode(OVERWRITE).start();
-            return writeUploader.getOutputStream();
-        } catch (DbxException e) {
-            throw new IOException("Error writing "+this, e);
-        }
+        CommitInfo commit = CommitInfo.newBuilder(getDropboxPath()).withMode(OVERWRITE).build();
+        writeUploader = new DropboxUploadSession(getClient().files(), commit);
+        return writeUploader;
     }
 
     @Override
@@ -339,23 +451,42 @@ public class UFileDropbox extends UFile {
         if (isNull(writeUploader)) return;
 
         try {
-            writeUploader.getOutputStream().flush();
-            writeUploader.finish();
-            writeUploader.close();
+            cacheMetadata(metadataToUFMetadata(writeUploader.finish()));
             writeUploader = null;
         } catch (DbxException | IOException e) {
             writeUploader = null;
             throw new RuntimeException("Error closing write "+this, e);
         }
     }
-/*
+
+    /**
+     * Dropbox has no server-side append, so the existing contents are streamed from the current revision straight
+     * into an upload session, followed by the new bytes. Unlike {@link UFile#append()}, this does not move the file
+     * to a temporary sibling first, and the commit fails rather than overwriting if another writer changed the file
+     * in the meantime.
+     */
     @Override
     public OutputStream append() throws IOException {
         try {
-            appendUploader = getClient().files().uploadBuilder(getPath()).withMode(ADD).start();
-            return appendUploader.getOutputStream();
+            Metadata existing = null;
+            try {
+                existing = callApi(5, () -> getClient().files().getMetadata(getDropboxPath()));
+            } catch (GetMetadataErrorException ignored) {
+                // file doesnt exist, append creates it
+            }
+
+            if (!(existing instanceof FileMetadata current)) {
+                appendUploader = new DropboxUploadSession(getClient().files(), new CommitInfo(getDropboxPath()));
+                return appendUploader;
+            }
+
+            CommitInfo commit = CommitInfo.newBuilder(getDropboxPath()).withMode(WriteMode.update(current.getRev())).build();
+            appendUploader = new DropboxUploadSession(getClient().files(), commit);
+            getClient().files().download(getDropboxPath(), current.getRev()).download(appendUploader);
+            return appendUploader;
         } catch (DbxException e) {
-            throw new IOException(e);
+            appendUploader = null;
+            throw new IOException("Error appending "+this, e);
         }
     }
 
@@ -364,15 +495,14 @@ public class UFileDropbox extends UFile {
         if (isNull(appendUploader)) return;
 
         try {
-            appendUploader.finish();
-            appendUploader.close();
+            cacheMetadata(metadataToUFMetadata(appendUploader.finish()));
             appendUploader = null;
-        } catch (DbxException e) {
+        } catch (DbxException | IOException e) {
             appendUploader = null;
-            throw new RuntimeException(e);
+            throw new RuntimeException("Error closing append "+this, e);
         }
     }
-*/
+
     @Override
     public void close() {
         readClose();
@@ -382,7 +512,7 @@ public class UFileDropbox extends UFile {
 
     @Override
     public UFOperationResult<Boolean> moveTo(UFile destination) {
-        if (destination instanceof UFileDropbox) {
+        if (isSameAccount(destination)) {
             return DROPBOX_BATCH.moveTo(List.of(new BatchMove(this, destination))).get(0);
         } else {
             return super.moveTo(destination);
@@ -391,14 +521,43 @@ public class UFileDropbox extends UFile {
 
     @Override
     public UFOperationResult<Boolean> copyTo(UFile destination) {
-        if (destination instanceof UFileDropbox) {
+        if (isSameAccount(destination)) {
             return DROPBOX_BATCH.copyTo(List.of(new BatchMove(this, destination))).get(0);
         } else {
-            return super.moveTo(destination);
+            return super.copyTo(destination);
         }
     }
 
 
+    /**
+     * Compares the <code>content_hash</code> Dropbox holds for this file with the hash of <code>source</code>.
+     * Sources in Dropbox report their hash from metadata. Other sources of the same length are read once and hashed
+     * locally, which is far cheaper than uploading them.
+     */
+    @Override
+    public UFOperationResult<Boolean> contentMatches(UFile source) {
+        return new UFOperationResult<>(this, () -> {
+            UFMetadata metadata = readMetadata();
+            if (isNull(metadata.getContentHash())) {
+                return false;
+            }
+
+            if (source instanceof UFileDropbox dbxSource) {
+                return metadata.getContentHash().equals(dbxSource.readMetadata().getContentHash());
+            }
+
+            if (!metadata.getLength().equals(source.length().getResultOrDefault(-1L))) {
+                return false;
+            }
+            try (InputStream in = source.read()) {
+                return metadata.getContentHash().equals(DropboxContentHasher.hash(in));
+            } finally {
+                source.readClose();
+            }
+        });
+    }
+
+
     @Override
     public UFile stepInto(String path) {
         return new UFileDropbox(this, join(getFileSep(), getPath(), path));
@@ -427,22 +586,38 @@ public class UFileDropbox extends UFile {
     }
 
 
-    private void populateMetadataCache() throws DbxException {
-        if (isNull(metadataCache)) {
-            try {
-                Metadata metadata = callApi(0, () -> getClient().files().getMetadata(getDropboxPath()));
-                metadataCache = metadataToUFMetadata(metadata);
-            } catch (GetMetadataErrorException ignored) {
-                // file doesnt exist, do nothing
-            } catch (DbxException e) {
-                e.printStackTrace();
-                throw e;
-            }
+    /**
+     * Checks whether <code>other</code> is a {@link UFileDropbox} in the same account, so server-side batch
+     * operations can be used between the two.
+     */
+    boolean isSameAccount(UFile other) {
+        return other instanceof UFileDropbox dbx && dbx.getAccessToken().equals(getAccessToken());
+    }
+
+    @Override
+    protected Object getBackendIdentity() {
+        return getAccessToken();
+    }
+
+    @Override
+    protected UFMetadata fetchMetadata() throws DbxException {
+        if (getDropboxPath().isEmpty()) {
+            return new UFMetadata(true, null, null, null, false, true);
+        }
+        try {
+            Metadata metadata = callApi(0, () -> getClient().files().getMetadata(getDropboxPath()));
+            return metadataToUFMetadata(metadata);
+        } catch (GetMetadataErrorException ignored) {
+            // file doesnt exist
+            return UFMetadata.NOT_EXIST;
+        } catch (DbxException e) {
+            e.printStackTrace();
+            throw e;
         }
     }
 
-    private UFMetadata metadataToUFMetadata(Metadata metadata) {
-        if (isNull(metadata)) {
+    UFMetadata metadataToUFMetadata(Metadata metadata) {
+        if (isNull(metadata) || metadata instanceof DeletedMetadata) {
             return UFMetadata.NOT_EXIST;
         }
 
@@ -452,11 +627,12 @@ public class UFileDropbox extends UFile {
                 null,
                 metadata instanceof FileMetadata ? ((FileMetadata) metadata).getClientModified() : null,
                 metadata instanceof FileMetadata,
-                metadata instanceof FolderMetadata
+                metadata instanceof FolderMetadata,
+                metadata instanceof FileMetadata ? ((FileMetadata) metadata).getContentHash() : null
         );
     }
 
-    private <T> T callApi(int retryCount, ExceptionNet<T, DbxException> function) throws DbxException {
+    <T> T callApi(int retryCount, ExceptionNet<T, DbxException> function) throws DbxException {
         int i = 0;
         while (true) {
             try {
@@ -478,7 +654,7 @@ public class UFileDropbox extends UFile {
 
 
     }
-    private String getDropboxPath() {
+    String getDropboxPath() {
         return getPath().equals("/") ? "" : getPath();
     }
 
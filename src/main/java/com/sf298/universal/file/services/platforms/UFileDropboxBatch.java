@@ -2,18 +2,25 @@ package com.sf298.universal.file.services.platforms;
 
 import com.dropbox.core.DbxException;
 import com.dropbox.core.v2.files.*;
-import com.sf298.universal.file.model.functions.ExceptionNet;
 import com.sf298.universal.file.model.inputs.BatchMove;
 import com.sf298.universal.file.model.responses.*;
+import com.sf298.universal.file.services.UFMetadataCache;
 import com.sf298.universal.file.services.UFile;
 import com.sf298.universal.file.services.UFileBatch;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 import static com.sf298.universal.file.model.responses.UFOperationResult.createBoolOperation;
 import static com.sf298.universal.file.utils.ListUtils.zipToPairs;
 import static java.util.Collections.emptyList;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static java.util.stream.Collectors.*;
 import static java.util.stream.Collectors.groupingBy;
 
@@ -21,16 +28,167 @@ public class UFileDropboxBatch extends UFileBatch<UFileDropbox> {
 
     public static UFileDropboxBatch DROPBOX_BATCH = new UFileDropboxBatch();
 
+    /**
+     * The number of entries Dropbox accepts in one upload session finish-batch call.
+     */
+    static final int FINISH_BATCH_LIMIT = 1000;
+
+    /**
+     * The number of entries Dropbox accepts in one delete-batch call.
+     */
+    static final int DELETE_BATCH_LIMIT = 1000;
+
+    /**
+     * The number of folders Dropbox accepts in one create-folder batch call.
+     */
+    static final int CREATE_FOLDER_BATCH_LIMIT = 10_000;
+
+    /**
+     * Files up to this size are uploaded through a batched commit rather than one upload each.
+     */
+    static final long SMALL_UPLOAD_LIMIT = DropboxUploadSession.DEFAULT_CHUNK_SIZE;
+
     private UFileDropboxBatch() {}
 
+    @Override
+    public UFOperationBatchResult<Boolean> exists(List<UFileDropbox> targets) {
+        prefetchMetadata(targets);
+        return super.exists(targets);
+    }
+
+    @Override
+    public UFOperationBatchResult<Boolean> isDirectory(List<UFileDropbox> targets) {
+        prefetchMetadata(targets);
+        return super.isDirectory(targets);
+    }
+
+    @Override
+    public UFOperationBatchResult<Boolean> isFile(List<UFileDropbox> targets) {
+        prefetchMetadata(targets);
+        return super.isFile(targets);
+    }
+
+    @Override
+    public UFOperationBatchResult<Date> lastModified(List<UFileDropbox> targets) {
+        prefetchMetadata(targets);
+        return super.lastModified(targets);
+    }
+
+    @Override
+    public UFOperationBatchResult<Long> length(List<UFileDropbox> targets) {
+        prefetchMetadata(targets);
+        return super.length(targets);
+    }
+
+    /**
+     * Fills the metadata cache for every uncached target by listing their parent folders, rather than fetching the
+     * metadata of each target on its own. Targets the listings could not resolve are left for the per-file lookup.
+     */
+    private void prefetchMetadata(List<UFileDropbox> targets) {
+        Map<String, List<UFileDropbox>> groupedByToken = targets.stream()
+                .filter(uf -> nonNull(uf.getParent()) && isNull(UFMetadataCache.SHARED.get(uf)))
+                .collect(groupingBy(UFileDropbox::getAccessToken));
+
+        groupedByToken.values().forEach(files -> {
+            // the targets still waiting for metadata, by lower case path, and the folders they are in
+            Map<String, List<UFileDropbox>> pending = files.stream()
+                    .collect(groupingBy(uf -> lowerPath(uf.getPath()), LinkedHashMap::new, toList()));
+            Set<String> parents = pending.keySet().stream()
+                    .map(UFileDropboxBatch::lowerParent)
+                    .collect(toCollection(LinkedHashSet::new));
+            UFileDropbox api = files.get(0);
+
+            // one recursive listing is cheaper than a listing per folder, unless it runs to more pages than there are folders
+            if (parents.size() > 1 && listForMetadata(api, commonAncestor(parents), true, parents.size(), pending)) {
+                return;
+            }
+            for (String parent : parents) {
+                if (pending.keySet().stream().anyMatch(path -> lowerParent(path).equals(parent))) {
+                    listForMetadata(api, parent, false, Integer.MAX_VALUE, pending);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lists <code>folder</code>, caching the metadata of each pending target found in it.
+     * @param maxPages The number of pages after which the listing is given up.
+     * @return <code>true</code> if the listing completed, in which case the pending targets below
+     *         <code>folder</code> that were not listed are cached as not existing.
+     */
+    private boolean listForMetadata(UFileDropbox api, String folder, boolean recursive, int maxPages, Map<String, List<UFileDropbox>> pending) {
+        DbxUserFilesRequests files = api.getClient().files();
+        try {
+            ListFolderResult page = api.callApi(0, () -> files.listFolderBuilder(folder.equals("/") ? "" : folder)
+                    .withRecursive(recursive)
+                    .withLimit(UFileDropbox.LIST_PAGE_SIZE)
+                    .start());
+            for (int pages = 1; ; pages++) {
+                for (Metadata entry : page.getEntries()) {
+                    List<UFileDropbox> found = pending.remove(entry.getPathLower());
+                    if (nonNull(found)) {
+                        found.forEach(uf -> UFMetadataCache.SHARED.put(uf, uf.metadataToUFMetadata(entry)));
+                    }
+                }
+                if (!page.getHasMore()) break;
+                if (pages >= maxPages) return false;
+                String cursor = page.getCursor();
+                page = api.callApi(5, () -> files.listFolderContinue(cursor));
+            }
+        } catch (ListFolderErrorException e) {
+            LookupError error = e.errorValue.isPath() ? e.errorValue.getPathValue() : null;
+            if (isNull(error) || !(error.isNotFound() || error.isNotFolder())) {
+                return false;
+            }
+            // nothing exists below a missing folder or a file
+        } catch (DbxException e) {
+            return false;
+        }
+
+        Iterator<Map.Entry<String, List<UFileDropbox>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<UFileDropbox>> entry = it.next();
+            String parent = lowerParent(entry.getKey());
+            if (recursive ? isWithin(parent, folder) : parent.equals(folder)) {
+                entry.getValue().forEach(uf -> UFMetadataCache.SHARED.put(uf, UFMetadata.NOT_EXIST));
+                it.remove();
+            }
+        }
+        return true;
+    }
+
+    private static String lowerPath(String path) {
+        String lower = path.toLowerCase(Locale.ROOT);
+        return lower.length() > 1 && lower.endsWith("/") ? lower.substring(0, lower.length() - 1) : lower;
+    }
+
+    private static String lowerParent(String lowerPath) {
+        int i = lowerPath.lastIndexOf('/');
+        return i <= 0 ? "/" : lowerPath.substring(0, i);
+    }
+
+    private static boolean isWithin(String path, String folder) {
+        return folder.equals("/") || path.equals(folder) || path.startsWith(folder + "/");
+    }
+
+    private static String commonAncestor(Collection<String> folders) {
+        Iterator<String> it = folders.iterator();
+        String ancestor = it.next();
+        while (it.hasNext()) {
+            String folder = it.next();
+            while (!isWithin(folder, ancestor)) {
+                ancestor = lowerParent(ancestor);
+            }
+        }
+        return ancestor;
+    }
+
     @Override
     public UFOperationBatchResult<Boolean> delete(List<UFileDropbox> targets) {
         Map<UFileDropbox, UFOperationResult<Boolean>> generated = new HashMap<>();
 
         // split targets into 'non-empty folders' and 'files or empty folders'
-        Map<Boolean, List<UFileDropbox>> grouped = targets.stream().collect(
-                groupingBy(uf -> uf.isDirectory().getResultOrDefault(false) &&
-                        (uf.listFiles().getResultOrDefault(new UFile[0]).length > 0)));
+        Map<Boolean, List<UFileDropbox>> grouped = targets.stream().collect(groupingBy(this::isNonEmptyFolder));
 
         // set results for all non-empty folders to false
         grouped.getOrDefault(true, emptyList()).forEach(uf -> generated.put(uf, createBoolOperation(uf, false)));
@@ -41,117 +199,400 @@ public class UFileDropboxBatch extends UFileBatch<UFileDropbox> {
         return order(targets, generated);
     }
 
+    /**
+     * Checks for a non-empty folder with at most one single-entry listing. Cached files need no call at all, and
+     * listing a file fails rather than returning entries.
+     */
+    private boolean isNonEmptyFolder(UFileDropbox target) {
+        UFMetadata cached = UFMetadataCache.SHARED.get(target);
+        if (nonNull(cached) && !cached.isFolder()) {
+            return false;
+        }
+        try {
+            ListFolderResult result = target.callApi(0, () -> target.getClient().files()
+                    .listFolderBuilder(target.getDropboxPath())
+                    .withLimit(1L)
+                    .start());
+            return !result.getEntries().isEmpty() || result.getHasMore();
+        } catch (DbxException e) {
+            // a file, or missing, either way the delete decides the result
+            return false;
+        }
+    }
+
     @Override
     public UFOperationBatchResult<Boolean> deleteRecursive(List<UFileDropbox> targets) {
-        System.out.println("Delete: " + targets);
-
         Map<String, List<UFileDropbox>> groupedByToken = targets.stream()
                 .collect(groupingBy(UFileDropbox::getAccessToken));
 
-        Map<UFileDropbox, UFOperationResult<Boolean>> generated = new HashMap<>();
+        // submit every chunk at once, the jobs are polled together
+        Map<UFileDropbox, UFOperationResult<Boolean>> generated = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> running = new ArrayList<>();
         groupedByToken.values().forEach(files -> {
-            List<DeleteArg> toDelete = files.stream()
-                    .map(UFile::getPath)
-                    .map(DeleteArg::new)
-                    .collect(toList());
             DbxUserFilesRequests filesService = files.get(0).getClient().files();
-            try {
-                // start and complete job
-                String jobId = filesService.deleteBatch(toDelete).getAsyncJobIdValue();
-                DeleteBatchJobStatus status = waitForDeleteJobToComplete(() -> filesService.deleteBatchCheck(jobId));
+            for (int i = 0; i < files.size(); i += DELETE_BATCH_LIMIT) {
+                List<UFileDropbox> chunk = files.subList(i, Math.min(i + DELETE_BATCH_LIMIT, files.size()));
+                running.add(deleteChunk(filesService, chunk, generated));
+            }
+        });
+        CompletableFuture.allOf(running.toArray(CompletableFuture[]::new)).join();
 
-                // process results
-                List<DeleteBatchResultEntry> resultSet = status.getCompleteValue().getEntries();
-                zipToPairs(files, resultSet, (uf, res) -> generated.put(uf, createBoolOperation(uf, res.isSuccess())));
-            } catch (DbxException e) {
-                // set result as 'error' for all BatchMoves in this group
-                files.forEach(uf -> generated.put(uf, new UFOperationResult<>(uf, e)));
+        return order(targets, generated);
+    }
+
+    private CompletableFuture<Void> deleteChunk(DbxUserFilesRequests filesService, List<UFileDropbox> chunk, Map<UFileDropbox, UFOperationResult<Boolean>> generated) {
+        List<DeleteArg> toDelete = chunk.stream()
+                .map(UFile::getPath)
+                .map(DeleteArg::new)
+                .collect(toList());
+
+        // start job
+        CompletableFuture<DeleteBatchResult> job;
+        try {
+            DeleteBatchLaunch launch = filesService.deleteBatch(toDelete);
+            job = launch.isComplete()
+                    ? CompletableFuture.completedFuture(launch.getCompleteValue())
+                    : DropboxJobPoller.SHARED.poll(() -> filesService.deleteBatchCheck(launch.getAsyncJobIdValue()), DeleteBatchJobStatus::isInProgress)
+                            .thenApply(status -> {
+                                if (status.isFailed()) {
+                                    throw new IllegalStateException("Delete batch failed: " + status.getFailedValue());
+                                }
+                                return status.getCompleteValue();
+                            });
+        } catch (DbxException e) {
+            job = CompletableFuture.failedFuture(e);
+        }
+
+        // process results
+        return job.handleAsync((result, e) -> {
+            if (isNull(e)) {
+                zipToPairs(chunk, result.getEntries(), (uf, res) -> generated.put(uf, createBoolOperation(uf, res.isSuccess())));
+            } else {
+                // set result as 'error' for all files in this chunk
+                chunk.forEach(uf -> generated.put(uf, new UFOperationResult<>(uf, unwrap(e))));
+            }
+            UFMetadataCache.SHARED.invalidateTrees(chunk);
+            return null;
+        });
+    }
+
+    @Override
+    public UFOperationBatchResult<Boolean> mkdir(List<UFileDropbox> targets) {
+        // the listings that tell whether each target exists also tell whether its parent does
+        List<UFileDropbox> parents = targets.stream()
+                .map(uf -> (UFileDropbox) uf.getParentUFile())
+                .filter(Objects::nonNull)
+                .collect(toList());
+        List<UFileDropbox> lookups = new ArrayList<>(targets);
+        lookups.addAll(parents);
+        prefetchMetadata(lookups);
+
+        // only create folders that are missing and whose parent exists, or is created by an earlier target
+        Map<UFileDropbox, UFOperationResult<Boolean>> generated = new HashMap<>();
+        Set<UFileDropbox> toCreate = new LinkedHashSet<>();
+        for (UFileDropbox uf : targets) {
+            UFile parent = uf.getParentUFile();
+            UFOperationResult<Boolean> exists = uf.exists();
+            if (!exists.isSuccessful()) {
+                generated.put(uf, exists);
+            } else if (isNull(parent) || exists.getResult() || toCreate.contains(uf)
+                    || !(toCreate.contains(parent) || parent.exists().getResultOrDefault(false))) {
+                generated.put(uf, createBoolOperation(uf, false));
+            } else {
+                toCreate.add(uf);
             }
+        }
+
+        // one batch per depth, so parents are made before their children, which are skipped if that failed
+        Map<Long, List<UFileDropbox>> levels = toCreate.stream()
+                .collect(groupingBy(uf -> lowerPath(uf.getPath()).chars().filter(c -> c == '/').count(), TreeMap::new, toList()));
+        levels.values().forEach(level -> {
+            Map<Boolean, List<UFileDropbox>> parentReady = level.stream().collect(partitioningBy(uf -> {
+                UFileDropbox parent = (UFileDropbox) uf.getParentUFile();
+                return !toCreate.contains(parent) || generated.get(parent).getResultOrDefault(false);
+            }));
+            parentReady.get(false).forEach(uf -> generated.put(uf, createBoolOperation(uf, false)));
+            generated.putAll(createFolders(parentReady.get(true)));
         });
 
         return order(targets, generated);
     }
 
     @Override
-    public UFOperationBatchResult<Boolean> moveTo(List<BatchMove> transfers) {
-        // split into transfers for same access token vs transfers across accounts
-        Map<Integer, List<BatchMove>> groupedTransfers = groupBySameTokens(transfers);
-        List<BatchMove> crossTokenTransfers = groupedTransfers.getOrDefault(0, emptyList());
-        List<BatchMove> sameTokenTransfers = groupedTransfers.getOrDefault(1, emptyList());
+    public UFOperationBatchResult<Boolean> mkdirs(List<UFileDropbox> targets) {
+        prefetchMetadata(targets);
 
-        // process transfers same token with same token
-        Map<String, List<BatchMove>> groupedByToken = sameTokenTransfers.stream()
-                .collect(groupingBy(t -> ((UFileDropbox) t.from).getAccessToken()));
+        // find the missing folders, once per path
+        Map<UFileDropbox, UFOperationResult<Boolean>> generated = new HashMap<>();
+        Map<String, UFileDropbox> missing = new LinkedHashMap<>();
+        for (UFileDropbox uf : targets) {
+            UFOperationResult<Boolean> exists = uf.exists();
+            if (!exists.isSuccessful()) {
+                generated.put(uf, exists);
+            } else if (isNull(uf.getParent()) || exists.getResult()) {
+                generated.put(uf, createBoolOperation(uf, false));
+            } else {
+                missing.putIfAbsent(lowerPath(uf.getPath()), uf);
+            }
+        }
 
-        Map<BatchMove, UFOperationResult<Boolean>> generated = new HashMap<>();
-        groupedByToken.values().forEach(bms -> {
-            List<RelocationPath> relocationPaths = batchMovesToRelocationPaths(bms);
-            DbxUserFilesRequests files = batchMovesToClientFiles(bms);
-            try {
-                // start and complete job
-                String jobId = files.moveBatchV2(relocationPaths).getAsyncJobIdValue();
-                RelocationBatchV2JobStatus status = waitForRelocateJobToComplete(() -> files.moveBatchCheckV2(jobId));
+        // only the deepest folders are sent, Dropbox creates their missing ancestors with them
+        Set<String> ancestors = new HashSet<>();
+        missing.keySet().forEach(path -> {
+            for (String parent = lowerParent(path); !parent.equals("/") && ancestors.add(parent); parent = lowerParent(parent));
+        });
+        List<UFileDropbox> deepest = missing.entrySet().stream()
+                .filter(e -> !ancestors.contains(e.getKey()))
+                .map(Map.Entry::getValue)
+                .collect(toList());
+        Map<UFileDropbox, UFOperationResult<Boolean>> created = createFolders(deepest);
+        generated.putAll(created);
+
+        // an ancestor was made if any folder below it was
+        missing.forEach((path, uf) -> {
+            if (ancestors.contains(path)) {
+                UFOperationResult<Boolean> result = created.entrySet().stream()
+                        .filter(e -> isWithin(lowerPath(e.getKey().getPath()), path))
+                        .map(Map.Entry::getValue)
+                        .reduce(null, (found, r) -> nonNull(found) && found.getResultOrDefault(false) ? found : r);
+                generated.put(uf, result.isSuccessful() ? createBoolOperation(uf, result.getResult()) : new UFOperationResult<>(uf, result.getException()));
+                uf.clearCache();
+            }
+        });
+
+        return order(targets, generated);
+    }
+
+    /**
+     * Creates folders with one create-folder batch job per chunk of each account's folders, polling all the jobs
+     * together.
+     * @return The result of each folder.
+     */
+    private Map<UFileDropbox, UFOperationResult<Boolean>> createFolders(List<UFileDropbox> folders) {
+        Map<String, List<UFileDropbox>> groupedByToken = folders.stream()
+                .collect(groupingBy(UFileDropbox::getAccessToken));
+
+        Map<UFileDropbox, UFOperationResult<Boolean>> generated = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        groupedByToken.values().forEach(group -> {
+            DbxUserFilesRequests files = group.get(0).getClient().files();
+            for (int i = 0; i < group.size(); i += CREATE_FOLDER_BATCH_LIMIT) {
+                List<UFileDropbox> chunk = group.subList(i, Math.min(i + CREATE_FOLDER_BATCH_LIMIT, group.size()));
+                List<String> paths = chunk.stream().map(UFile::getPath).collect(toList());
+
+                // start job
+                CompletableFuture<CreateFolderBatchResult> job;
+                try {
+                    CreateFolderBatchLaunch launch = files.createFolderBatch(paths);
+                    job = launch.isComplete()
+                            ? CompletableFuture.completedFuture(launch.getCompleteValue())
+                            : DropboxJobPoller.SHARED.poll(() -> files.createFolderBatchCheck(launch.getAsyncJobIdValue()), CreateFolderBatchJobStatus::isInProgress)
+                                    .thenApply(status -> {
+                                        if (status.isFailed()) {
+                                            throw new IllegalStateException("Create folder batch failed: " + status.getFailedValue());
+                                        }
+                                        return status.getCompleteValue();
+                                    });
+                } catch (DbxException e) {
+                    job = CompletableFuture.failedFuture(e);
+                }
 
                 // process results
-                List<RelocationBatchResultEntry> resultSet = status.getCompleteValue().getEntries();
-                zipToPairs(bms, resultSet, (bm, res) -> generated.put(bm, createBoolOperation(bm.from, res.isSuccess())));
-            } catch (DbxException e) {
-                // set result as 'error' for all BatchMoves in this group
-                bms.forEach(bm -> generated.put(bm, new UFOperationResult<>(bm.from, e)));
+                running.add(job.handleAsync((result, e) -> {
+                    chunk.forEach(uf -> {
+                        for (UFile f = uf; nonNull(f); f = f.getParentUFile()) {
+                            f.clearCache();
+                        }
+                    });
+                    if (isNull(e)) {
+                        zipToPairs(chunk, result.getEntries(), (uf, res) -> {
+                            generated.put(uf, createBoolOperation(uf, res.isSuccess()));
+                            if (res.isSuccess()) {
+                                UFMetadataCache.SHARED.put(uf, uf.metadataToUFMetadata(res.getSuccessValue().getMetadata()));
+                            }
+                        });
+                    } else {
+                        // set result as 'error' for all folders in this chunk
+                        chunk.forEach(uf -> generated.put(uf, new UFOperationResult<>(uf, unwrap(e))));
+                    }
+                    return null;
+                }));
             }
         });
+        CompletableFuture.allOf(running.toArray(CompletableFuture[]::new)).join();
+
+        return generated;
+    }
+
+    @Override
+    public UFOperationBatchResult<Boolean> moveTo(List<BatchMove> transfers) {
+        // split into transfers within one account vs transfers across accounts or backends
+        Map<Boolean, List<BatchMove>> groupedTransfers = transfers.stream().collect(partitioningBy(this::isSameAccount));
+        List<BatchMove> sameTokenTransfers = groupedTransfers.get(true);
+        List<BatchMove> crossTokenTransfers = groupedTransfers.get(false);
+
+        // process transfers same token with same token
+        Map<String, List<BatchMove>> groupedByToken = sameTokenTransfers.stream()
+                .collect(groupingBy(t -> ((UFileDropbox) t.from).getAccessToken()));
+
+        Map<BatchMove, UFOperationResult<Boolean>> generated = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> running = groupedByToken.values().stream()
+                .map(bms -> relocate(bms, true, generated))
+                .collect(toList());
 
         // use superclass to transfer across tokens
         UFOperationBatchResult<Boolean> crossTokenResults = super.moveTo(crossTokenTransfers);
         zipToPairs(crossTokenTransfers, crossTokenResults, generated::put);
+        CompletableFuture.allOf(running.toArray(CompletableFuture[]::new)).join();
 
         return order(transfers, generated);
     }
 
     @Override
     public UFOperationBatchResult<Boolean> copyTo(List<BatchMove> transfers) {
-        // split into transfers for same access token vs transfers across accounts
-        Map<Integer, List<BatchMove>> groupedTransfers = groupBySameTokens(transfers);
-        List<BatchMove> sameTokenTransfers = groupedTransfers.getOrDefault(1, emptyList());
-        List<BatchMove> crossTokenTransfers = groupedTransfers.getOrDefault(0, emptyList());
+        // split into transfers within one account, small uploads into dropbox, and everything else
+        Map<Boolean, List<BatchMove>> groupedTransfers = transfers.stream().collect(partitioningBy(this::isSameAccount));
+        List<BatchMove> sameTokenTransfers = groupedTransfers.get(true);
+        Map<Boolean, List<BatchMove>> groupedUploads = groupedTransfers.get(false).stream()
+                .collect(partitioningBy(t -> t.to instanceof UFileDropbox && isSmallFile(t.from)));
+        List<BatchMove> smallUploads = groupedUploads.get(true);
+        List<BatchMove> crossTokenTransfers = groupedUploads.get(false);
 
         // process same token transfers
         Map<String, List<BatchMove>> groupedByToken = sameTokenTransfers.stream()
                 .collect(groupingBy(t -> ((UFileDropbox) t.from).getAccessToken()));
 
-        Map<BatchMove, UFOperationResult<Boolean>> generated = new HashMap<>();
-        groupedByToken.values().forEach(bms -> {
-            List<RelocationPath> relocationPaths = batchMovesToRelocationPaths(bms);
-            DbxUserFilesRequests files = batchMovesToClientFiles(bms);
-            try {
-                // start and complete job
-                String jobId = files.copyBatchV2(relocationPaths).getAsyncJobIdValue();
-                RelocationBatchV2JobStatus status = waitForRelocateJobToComplete(() -> files.copyBatchCheckV2(jobId));
+        Map<BatchMove, UFOperationResult<Boolean>> generated = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> running = groupedByToken.values().stream()
+                .map(bms -> relocate(bms, false, generated))
+                .collect(toList());
 
-                // process results
-                List<RelocationBatchResultEntry> resultSet = status.getCompleteValue().getEntries();
-                zipToPairs(bms, resultSet, (bm, res) -> generated.put(bm, createBoolOperation(bm.from, res.isSuccess())));
-            } catch (DbxException e) {
-                // set result as 'error' for all BatchMoves in this group
-                bms.forEach(bm -> generated.put(bm, new UFOperationResult<>(bm.from, e)));
-            }
-        });
+        // upload small files with batched commits
+        running.addAll(uploadSmallFiles(smallUploads, generated));
 
         // use superclass to transfer across tokens
         UFOperationBatchResult<Boolean> crossTokenResults = super.copyTo(crossTokenTransfers);
         zipToPairs(crossTokenTransfers, crossTokenResults, generated::put);
+        CompletableFuture.allOf(running.toArray(CompletableFuture[]::new)).join();
 
         return order(transfers, generated);
     }
 
-    private Map<Integer, List<BatchMove>> groupBySameTokens(List<BatchMove> transfers) {
-        return transfers.stream()
-                .filter(t -> t.from instanceof UFileDropbox && t.to instanceof UFileDropbox)
-                .collect(groupingBy(t -> {
-                    UFileDropbox from = (UFileDropbox) t.from;
-                    UFileDropbox to = (UFileDropbox) t.to;
-                    return from.getAccessToken().equals(to.getAccessToken()) ? 1 : 0;
+    /**
+     * Starts a move or copy job for transfers within one account.
+     * @return Completes once the results of the job are in <code>generated</code>.
+     */
+    private CompletableFuture<Void> relocate(List<BatchMove> bms, boolean move, Map<BatchMove, UFOperationResult<Boolean>> generated) {
+        List<RelocationPath> relocationPaths = batchMovesToRelocationPaths(bms);
+        DbxUserFilesRequests files = batchMovesToClientFiles(bms);
+
+        // start job
+        CompletableFuture<RelocationBatchV2Result> job;
+        try {
+            RelocationBatchV2Launch launch = move ? files.moveBatchV2(relocationPaths) : files.copyBatchV2(relocationPaths);
+            String jobId = launch.isAsyncJobId() ? launch.getAsyncJobIdValue() : null;
+            job = launch.isComplete()
+                    ? CompletableFuture.completedFuture(launch.getCompleteValue())
+                    : DropboxJobPoller.SHARED.poll(() -> move ? files.moveBatchCheckV2(jobId) : files.copyBatchCheckV2(jobId), RelocationBatchV2JobStatus::isInProgress)
+                            .thenApply(RelocationBatchV2JobStatus::getCompleteValue);
+        } catch (DbxException e) {
+            job = CompletableFuture.failedFuture(e);
+        }
+
+        // process results
+        return job.handleAsync((result, e) -> {
+            if (isNull(e)) {
+                zipToPairs(bms, result.getEntries(), (bm, res) -> generated.put(bm, createBoolOperation(bm.from, res.isSuccess())));
+            } else {
+                // set result as 'error' for all BatchMoves in this group
+                bms.forEach(bm -> generated.put(bm, new UFOperationResult<>(bm.from, unwrap(e))));
+            }
+            List<UFile> changed = new ArrayList<>();
+            bms.forEach(bm -> {
+                if (move) changed.add(bm.from);
+                changed.add(bm.to);
+            });
+            UFMetadataCache.SHARED.invalidateTrees(changed);
+            return null;
+        });
+    }
+
+    /**
+     * Uploads each file into its own closed upload session, then commits the sessions with as few finish-batch
+     * calls as the API allows. Committing together takes the namespace write lock once per batch rather than once
+     * per file.
+     */
+    private List<CompletableFuture<Void>> uploadSmallFiles(List<BatchMove> uploads, Map<BatchMove, UFOperationResult<Boolean>> generated) {
+        Map<String, List<BatchMove>> groupedByToken = uploads.stream()
+                .collect(groupingBy(t -> ((UFileDropbox) t.to).getAccessToken()));
+
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        groupedByToken.values().forEach(bms -> {
+            DbxUserFilesRequests files = ((UFileDropbox) bms.get(0).to).getClient().files();
+
+            // upload contents, keeping only the transfers that made it into a session
+            List<BatchMove> started = new ArrayList<>();
+            List<UploadSessionFinishArg> finishArgs = new ArrayList<>();
+            for (BatchMove bm : bms) {
+                UFOperationResult<UploadSessionFinishArg> r = new UFOperationResult<>(bm.from, () -> uploadToClosedSession(files, bm));
+                if (r.isSuccessful()) {
+                    started.add(bm);
+                    finishArgs.add(r.getResult());
+                } else {
+                    generated.put(bm, new UFOperationResult<>(bm.from, r.getException()));
+                }
+            }
+
+            // commit in chunks the api accepts
+            for (int i = 0; i < started.size(); i += FINISH_BATCH_LIMIT) {
+                List<BatchMove> chunk = started.subList(i, Math.min(i + FINISH_BATCH_LIMIT, started.size()));
+                List<UploadSessionFinishArg> chunkArgs = finishArgs.subList(i, i + chunk.size());
+                CompletableFuture<UploadSessionFinishBatchResult> job;
+                try {
+                    UploadSessionFinishBatchLaunch launch = files.uploadSessionFinishBatch(chunkArgs);
+                    job = launch.isComplete()
+                            ? CompletableFuture.completedFuture(launch.getCompleteValue())
+                            : DropboxJobPoller.SHARED.poll(() -> files.uploadSessionFinishBatchCheck(launch.getAsyncJobIdValue()), UploadSessionFinishBatchJobStatus::isInProgress)
+                                    .thenApply(UploadSessionFinishBatchJobStatus::getCompleteValue);
+                } catch (DbxException e) {
+                    job = CompletableFuture.failedFuture(e);
+                }
+
+                // process results
+                running.add(job.handleAsync((result, e) -> {
+                    if (isNull(e)) {
+                        zipToPairs(chunk, result.getEntries(), (bm, res) -> generated.put(bm, createBoolOperation(bm.from, res.isSuccess())));
+                    } else {
+                        // set result as 'error' for all BatchMoves in this chunk
+                        chunk.forEach(bm -> generated.put(bm, new UFOperationResult<>(bm.from, unwrap(e))));
+                    }
+                    chunk.forEach(bm -> bm.to.clearCache());
+                    return null;
                 }));
+            }
+        });
+        return running;
+    }
+    private UploadSessionFinishArg uploadToClosedSession(DbxUserFilesRequests files, BatchMove bm) throws Exception {
+        byte[] contents;
+        try (InputStream in = bm.from.read()) {
+            contents = in.readAllBytes();
+        } finally {
+            bm.from.readClose();
+        }
+
+        String sessionId = files.uploadSessionStart(true)
+                .uploadAndFinish(new ByteArrayInputStream(contents))
+                .getSessionId();
+        CommitInfo commit = CommitInfo.newBuilder(bm.to.getPath()).withMode(WriteMode.OVERWRITE).build();
+        return new UploadSessionFinishArg(new UploadSessionCursor(sessionId, contents.length), commit);
+    }
+    private boolean isSmallFile(UFile file) {
+        return file.isFile().getResultOrDefault(false)
+                && file.length().getResultOrDefault(Long.MAX_VALUE) <= SMALL_UPLOAD_LIMIT;
+    }
+    private boolean isSameAccount(BatchMove transfer) {
+        return transfer.from instanceof UFileDropbox from && from.isSameAccount(transfer.to);
     }
     private DbxUserFilesRequests batchMovesToClientFiles(List<BatchMove> batchMoves) {
         return ((UFileDropbox)batchMoves.get(0).from).getClient().files();
@@ -161,29 +602,9 @@ public class UFileDropboxBatch extends UFileBatch<UFileDropbox> {
                 .map(bm -> new RelocationPath(bm.from.getPath(), bm.to.getPath()))
                 .collect(toList());
     }
-    private RelocationBatchV2JobStatus waitForRelocateJobToComplete(ExceptionNet<RelocationBatchV2JobStatus, DbxException> isComplete) throws DbxException {
-        while (true) {
-            RelocationBatchV2JobStatus status = isComplete.run();
-            if (status.isComplete()) return status;
-            try {
-                Thread.sleep(100);
-            } catch (Exception ignored) {}
-        }
-    }
-    private DeleteBatchJobStatus waitForDeleteJobToComplete(ExceptionNet<DeleteBatchJobStatus, DbxException> isComplete) throws DbxException {
-        while (true) {
-            DeleteBatchJobStatus status = isComplete.run();
-            if (status.isComplete()) return status;
-            try {
-                Thread.sleep(100);
-            } catch (Exception ignored) {}
-        }
-    }
-
-    private <I,R> UFOperationBatchResult<R> order(List<I> ordering, Map<I, UFOperationResult<R>> map) {
-        return ordering.stream()
-                .map(map::get)
-                .collect(Collectors.toCollection(UFOperationBatchResult::new));
+    private static Exception unwrap(Throwable e) {
+        Throwable cause = e instanceof CompletionException && nonNull(e.getCause()) ? e.getCause() : e;
+        return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
     }
 
 }
@@ -1,12 +1,18 @@
 package com.sf298.universal.file.services.platforms;
 
 import com.sf298.universal.file.model.connection.ConnectionDetails;
+import com.sf298.universal.file.model.functions.ThrowableFunction;
+import com.sf298.universal.file.model.functions.UFileGlobFilter;
 import com.sf298.universal.file.model.responses.*;
+import com.sf298.universal.file.services.UFMetadataCache;
 import com.sf298.universal.file.services.UFile;
+import com.sf298.universal.file.utils.BoundedInputStream;
+import com.sf298.universal.file.utils.PagedIterator;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.net.ftp.FTPClient;
-import org.apache.commons.net.ftp.FTPClientConfig;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPListParseEngine;
+import org.apache.commons.net.ftp.FTPReply;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,25 +20,62 @@ import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import static com.sf298.universal.file.model.connection.ConnectionParam.*;
 import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
-import static org.apache.commons.net.ftp.FTPReply.*;
 
 public class UFileFtp extends UFile {
 
+    static {
+        UFMetadataCache.SHARED.setTtl(UFileFtp.class, 30_000);
+    }
+
     /**
      * The time format used by {@link FTPClient}.
      */
     private static final SimpleDateFormat timeValFormat = new SimpleDateFormat("yyyyMMddHHmmss");
 
     /**
-     * The cache of clients {@link FTPClient}. Reduces overhead of new connections.
+     * How long a directory listing fetched to stat one of its entries is reused for its siblings.
+     */
+    public static final long LISTING_CACHE_MILLIS = 5_000;
+
+    /**
+     * The number of directory listings kept, least recently used dropped first.
      */
-    private static final Map<Pair<ConnectionDetails, String>, FTPClient> ftpConnections = new ConcurrentHashMap<>();
+    public static final int LISTING_CACHE_MAX_ENTRIES = 1000;
+
+    /**
+     * The number of entries parsed at a time when streaming a listing.
+     */
+    static final int LIST_PAGE_SIZE = 1000;
+
+    /**
+     * Whether each server advertises <code>MLST</code>, so <code>FEAT</code> is only sent once per server.
+     */
+    private static final Map<ConnectionDetails, Boolean> mlstSupport = new ConcurrentHashMap<>();
+
+    /**
+     * Recent directory listings, keyed by server and directory path.
+     */
+    private static final Map<Pair<ConnectionDetails, String>, CachedListing> listingCache = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Pair<ConnectionDetails, String>, CachedListing> eldest) {
+                    return size() > LISTING_CACHE_MAX_ENTRIES;
+                }
+            });
+
+    private record CachedListing(FTPFile[] entries, long expiresAt) {}
 
     private final ConnectionDetails login;
+    private FTPClient readClient;
+    private InputStream readStream;
+    private boolean readBounded;
+    private FTPClient writeClient;
+    private FTPClient appendClient;
 
     /**
      * Creates a new {@link UFile} located at "/".
@@ -68,6 +111,17 @@ public class UFileFtp extends UFile {
         this(uFile.login, path);
     }
 
+    /**
+     * Creates a new {@link UFile} for an entry listed in the directory <code>parent</code>, caching the listed
+     * metadata so the entry needs no further round trips to describe.
+     * @param parent The listed directory.
+     * @param ftpFile The listed entry.
+     */
+    private UFileFtp(UFileFtp parent, FTPFile ftpFile) {
+        this(parent.login, join(parent.getFileSep(), parent.getPath(), nameOf(ftpFile)));
+        cacheMetadata(ftpFileToUFMetadata(ftpFile));
+    }
+
 
     @Override
     public String getFileSep() {
@@ -82,25 +136,33 @@ public class UFileFtp extends UFile {
     }
 
 
+    @Override
+    protected Object getBackendIdentity() {
+        return login;
+    }
+
+    @Override
+    protected UFMetadata fetchMetadata() throws Exception {
+        if (getPath().equals(getFileSep())) {
+            return new UFMetadata(true, null, null, null, false, true);
+        }
+        FTPFile ftpFile = asFTPFile();
+        return isNull(ftpFile) ? UFMetadata.NOT_EXIST : ftpFileToUFMetadata(ftpFile);
+    }
+
     @Override
     public UFOperationResult<Boolean> exists() {
-        return new UFOperationResult<>(this, () -> getPath().equals(getFileSep()) || nonNull(asFTPFile()));
+        return new UFOperationResult<>(this, () -> readMetadata().isExists());
     }
 
     @Override
     public UFOperationResult<Boolean> isDirectory() {
-        return new UFOperationResult<>(this, () -> {
-            FTPFile sftpFile = asFTPFile();
-            return nonNull(sftpFile) && sftpFile.isDirectory();
-        });
+        return new UFOperationResult<>(this, () -> readMetadata().isFolder());
     }
 
     @Override
     public UFOperationResult<Boolean> isFile() {
-        return new UFOperationResult<>(this, () -> {
-            FTPFile sftpFile = asFTPFile();
-            return nonNull(sftpFile) && sftpFile.isFile();
-        });
+        return new UFOperationResult<>(this, () -> readMetadata().isFile());
     }
 
     @Override
@@ -115,46 +177,56 @@ public class UFileFtp extends UFile {
 
     @Override
     public UFOperationResult<Date> lastModified() {
-        return new UFOperationResult<>(this, () -> timeValFormat.parse(getClient().getModificationTime(getPath())));
+        return new UFOperationResult<>(this, () -> timeValFormat.parse(withClient(c -> c.getModificationTime(getPath()))));
     }
 
     @Override
     public UFOperationResult<Boolean> setLastModified(Date time) {
-        return new UFOperationResult<>(this,
-                () -> getClient().setModificationTime(getPath(), timeValFormat.format(time)));
+        return new UFOperationResult<>(this, () -> {
+            try {
+                return withClient(c -> c.setModificationTime(getPath(), timeValFormat.format(time)));
+            } finally {
+                clearCache();
+            }
+        });
     }
 
     @Override
     public UFOperationResult<Long> length() {
-        return new UFOperationResult<>(this, () -> Long.parseLong(getClient().getSize(getPath())));
+        return new UFOperationResult<>(this, () -> {
+            UFMetadata metadata = readMetadata();
+            return metadata.isExists() && nonNull(metadata.getLength())
+                    ? metadata.getLength()
+                    : Long.parseLong(withClient(c -> c.getSize(getPath())));
+        });
     }
 
 
     @Override
     public UFOperationResult<Boolean> delete() {
-        return new UFOperationResult<>(this, () -> getClient().deleteFile(getPath()) || getClient().removeDirectory(getPath()));
+        return new UFOperationResult<>(this, () -> {
+            // a listed directory is known to be one, so skip trying it as a file first
+            UFMetadata known = UFMetadataCache.SHARED.get(this);
+            boolean isFolder = nonNull(known) && known.isFolder();
+            try {
+                return withClient(c -> isFolder
+                        ? c.removeDirectory(getPath())
+                        : c.deleteFile(getPath()) || c.removeDirectory(getPath()));
+            } finally {
+                clearCache();
+            }
+        });
     }
 
     @Override
     public UFOperationResult<Boolean> deleteRecursive() {
-        if (isDirectory().getResultOrDefault(false)) {
-            UFOperationResult<UFile[]> children = listFiles();
-            if (!children.isSuccessful()) {
-                return new UFOperationResult<>(this, children.getException());
-            }
-
-            Arrays.stream(children.getResult()).forEach(UFile::deleteRecursive);
-
-            return new UFOperationResult<>(this, () -> getClient().removeDirectory(getPath()));
-        } else {
-            return delete();
-        }
+        return summariseDelete(deleteRecursiveBatch());
     }
 
     @Override
     public UFOperationResult<String[]> list() {
         return new UFOperationResult<>(this,
-                () -> Arrays.stream(getClient().listNames(getPath()))
+                () -> Arrays.stream(this.<String[]>withClient(c -> c.listNames(getPath())))
                     .map(f -> {
                         int index = f.lastIndexOf("/");
                         return index==-1 ? f : f.substring(index+1);
@@ -167,20 +239,71 @@ public class UFileFtp extends UFile {
     @Override
     public UFOperationResult<UFile[]> listFiles() {
         return new UFOperationResult<>(this, () ->
-                Arrays.stream(getClient().listFiles(getPath()))
-                    .map(this::toUFile)
-                    .filter(uf -> !uf.getPath().endsWith(".") && !uf.getPath().endsWith(".."))
+                Arrays.stream(listDirectory(getPath()))
+                    .filter(ftp -> !nameOf(ftp).equals(".") && !nameOf(ftp).equals(".."))
+                    .map(ftp -> new UFileFtp(this, ftp))
                     .toArray(UFile[]::new)
         );
     }
 
+    /**
+     * Looks a literal name up on its own, with a single-entry <code>MLST</code> where the server supports it.
+     * Patterns with wildcards are matched locally against a listing of the whole directory, as servers that expand
+     * a <code>LIST</code> pattern list the contents of matching directories rather than the directories themselves.
+     */
+    @Override
+    protected UFOperationResult<UFile[]> listFilesMatching(UFileGlobFilter glob) {
+        if (!glob.isLiteral() || glob.getGlob().contains(getFileSep())) {
+            return super.listFilesMatching(glob);
+        }
+        return new UFOperationResult<>(this, () -> {
+            FTPFile match = new UFileFtp(this, join(getFileSep(), getPath(), glob.getGlob())).asFTPFile();
+            return isNull(match) ? new UFile[0] : new UFile[]{new UFileFtp(this, match)};
+        });
+    }
+
+    /**
+     * Each concurrent listing holds a pooled connection, so walks use as many as the pool allows.
+     */
+    @Override
+    public int getWalkParallelism() {
+        return FtpConnectionPool.SHARED.getMaxSize();
+    }
+
+    /**
+     * Lists this directory, turning the raw listing into entries one page at a time as the stream is consumed.
+     * The connection is only held while the server sends the listing.
+     */
+    @Override
+    public UFOperationResult<Stream<UFile>> streamFiles() {
+        UFOperationResult<FTPListParseEngine> engine = new UFOperationResult<>(this,
+                () -> withClient(c -> c.initiateListParsing(getPath())));
+        if (!engine.isSuccessful()) {
+            return new UFOperationResult<>(this, engine.getException());
+        }
+
+        return new UFOperationResult<>(this, () -> PagedIterator.stream(() -> {
+            if (!engine.getResult().hasNext()) {
+                return null;
+            }
+            return Arrays.stream(engine.getResult().getNext(LIST_PAGE_SIZE))
+                    .filter(ftp -> nonNull(ftp) && !nameOf(ftp).equals(".") && !nameOf(ftp).equals(".."))
+                    .map(ftp -> (UFile) new UFileFtp(this, ftp))
+                    .toList();
+        }));
+    }
+
     @Override
     public UFOperationResult<Boolean> mkdir() {
         return new UFOperationResult<>(this, () -> {
             if (!getParentUFile().exists().isSuccessful()) {
                 return false;
             }
-            return getClient().makeDirectory(getPath());
+            try {
+                return withClient(c -> c.makeDirectory(getPath()));
+            } finally {
+                clearCache();
+            }
         });
     }
 
@@ -191,81 +314,134 @@ public class UFileFtp extends UFile {
             if (!parent.exists().getResult()) {
                 parent.mkdirs();
             }
-            return getClient().makeDirectory(getPath());
+            try {
+                return withClient(c -> c.makeDirectory(getPath()));
+            } finally {
+                clearCache();
+            }
         });
     }
 
 
     @Override
     public InputStream read() throws IOException {
-        return getClient("read").retrieveFileStream(getPath());
+        return read(0, -1);
     }
 
+    /**
+     * Opens a read over its own pooled connection. Only one read can be open at a time, so finish each with
+     * {@link #readClose()} before starting the next.
+     * @throws IOException If the read could not be started, or a read is already open.
+     */
     @Override
-    public void readClose() {
+    public InputStream read(long offset, long length) throws IOException {
+        if (nonNull(readClient)) {
+            throw new IOException("A read of "+this+" is already open, finish it with readClose() first");
+        }
+        FTPClient client = FtpConnectionPool.SHARED.borrow(login);
+        InputStream in;
         try {
-            getClient("read").completePendingCommand();
-            removeClient("read");
+            client.setRestartOffset(offset);
+            in = client.retrieveFileStream(getPath());
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            FtpConnectionPool.SHARED.invalidate(login, client);
+            throw e;
+        }
+        if (isNull(in)) {
+            String reply = client.getReplyString();
+            FtpConnectionPool.SHARED.release(login, client);
+            throw new IOException("Could not read "+this+" from offset "+offset+": "+reply);
         }
+        readClient = client;
+        readStream = in;
+        readBounded = length >= 0;
+        return readBounded ? new BoundedInputStream(in, length) : in;
     }
 
     @Override
-    public OutputStream write() throws IOException {
-        return getClient("write").storeFileStream(getPath());
+    public boolean supportsRangedRead() {
+        return true;
     }
 
+    /**
+     * Finishes the open read. A ranged read usually stops before the end of the file, so its data connection is
+     * closed here and the server's <code>426</code> reply to the cut transfer is accepted.
+     */
     @Override
-    public void writeClose() {
+    public void readClose() {
+        FTPClient client = readClient;
+        InputStream in = readStream;
+        readClient = null;
+        readStream = null;
+        if (isNull(client)) return;
+
         try {
-            getClient("write").completePendingCommand();
-            removeClient("write");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            in.close();
+        } catch (IOException ignored) {}
+        completeStream(client, readBounded);
+    }
+
+    @Override
+    public OutputStream write() throws IOException {
+        clearCache();
+        writeClient = FtpConnectionPool.SHARED.borrow(login);
+        OutputStream out = writeClient.storeFileStream(getPath());
+        if (isNull(out)) {
+            String reply = writeClient.getReplyString();
+            FtpConnectionPool.SHARED.release(login, writeClient);
+            writeClient = null;
+            throw new IOException("Could not write "+this+": "+reply);
         }
+        return out;
+    }
+
+    @Override
+    public void writeClose() {
+        completeStream(writeClient, false);
+        writeClient = null;
+        clearCache();
     }
 
     @Override
     public OutputStream append() throws IOException {
-        return getClient("append").appendFileStream(getPath());
+        clearCache();
+        appendClient = FtpConnectionPool.SHARED.borrow(login);
+        OutputStream out = appendClient.appendFileStream(getPath());
+        if (isNull(out)) {
+            String reply = appendClient.getReplyString();
+            FtpConnectionPool.SHARED.release(login, appendClient);
+            appendClient = null;
+            throw new IOException("Could not append to "+this+": "+reply);
+        }
+        return out;
     }
 
     @Override
     public void appendClose() {
-        try {
-            getClient("append").completePendingCommand();
-            removeClient("append");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        completeStream(appendClient, false);
+        appendClient = null;
+        clearCache();
     }
 
+    /**
+     * Closes every idle pooled connection to this server.
+     */
     @Override
     public void close() {
-        FTPClient client = getClient();
-        try {
-            client.logout();
-        } catch (IOException e) {
-            if(client.isConnected()) {
-                try {
-                    client.disconnect();
-                } catch(IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-        }
-        removeClient();
+        FtpConnectionPool.SHARED.close(login);
     }
 
     @Override
     public UFOperationResult<Boolean> moveTo(UFile destination) {
         if (destination instanceof UFileFtp && ((UFileFtp)destination).login.equals(this.login)) {
             return new UFOperationResult<>(this, () -> {
-                boolean result = getClient().rename(this.getPath(), destination.getPath());
+                boolean result = withClient(c -> c.rename(this.getPath(), destination.getPath()));
                 if(!result) {
                     throw new RuntimeException("Unknown error occurred. Could not move '"+getPath()+"' to '"+destination.getPath()+"'");
                 }
+                UFMetadataCache.SHARED.invalidateTrees(List.of(this, destination));
+                clearCache();
+                destination.clearCache();
                 return true;
             });
         }
@@ -280,11 +456,16 @@ public class UFileFtp extends UFile {
 
     @Override
     public UFile goTo(String path) {
-        return new UFileFtp(this, join(path, getFileSep()));
+        return new UFileFtp(this, path);
     }
 
     @Override
-    public void clearCache() {}
+    public void clearCache() {
+        super.clearCache();
+        if (nonNull(getParent())) {
+            listingCache.remove(Pair.of(login, getParent()));
+        }
+    }
 
     @Override
     public String toString() {
@@ -307,103 +488,114 @@ public class UFileFtp extends UFile {
     }
 
     /**
-     * Converts the {@link FTPFile} into a {@link UFile}.
-     * @param ftpFile The {@link FTPFile} to convert.
-     * @return The created {@link UFile}.
+     * Converts the {@link FTPFile} into {@link UFMetadata}.
+     * @param ftpFile The listed {@link FTPFile}.
+     * @return The metadata of the listed file.
      */
-    private UFile toUFile(FTPFile ftpFile) {
-        return new UFileFtp(this, getPath() + (getPath().endsWith(getFileSep()) ? "" : getFileSep()) + ftpFile.getName());
+    private static UFMetadata ftpFileToUFMetadata(FTPFile ftpFile) {
+        Date lastModified = isNull(ftpFile.getTimestamp()) ? null : ftpFile.getTimestamp().getTime();
+        Long length = ftpFile.isFile() ? ftpFile.getSize() : null;
+        return new UFMetadata(true, length, null, lastModified, ftpFile.isFile(), ftpFile.isDirectory());
     }
 
     /**
-     * Gets the existing {@link FTPFile} from this {@link UFile}.
+     * Gets the existing {@link FTPFile} from this {@link UFile}. Uses a recent listing of the parent if there is
+     * one, otherwise a single-entry <code>MLST</code> if the server supports it, otherwise lists the parent.
      * @return The retrieved {@link FTPFile} or null if not found.
      */
-    private FTPFile asFTPFile() throws IOException {
-        return Arrays.stream(getClient().listFiles(getParent()))
-                .filter(ftp -> getPath().endsWith(ftp.getName()))
+    private FTPFile asFTPFile() throws Exception {
+        if (isNull(cachedListing(Pair.of(login, getParent())))) {
+            FTPFile[] stat = withClient(c -> mlstSupport.computeIfAbsent(login, l -> hasMlst(c))
+                    ? new FTPFile[]{c.mlistFile(getPath())}
+                    : null);
+            if (nonNull(stat)) {
+                return stat[0];
+            }
+        }
+
+        return Arrays.stream(listDirectory(getParent()))
+                .filter(ftp -> getName().equals(nameOf(ftp)))
                 .findFirst().orElse(null);
     }
 
     /**
-     * Gets a {@link FTPClient} for this {@link UFile}. Creates and connects if required.
-     * @param kind The specific version of the client. Allows for multiple connections to a single server to be maintained.
-     * @return The {@link FTPClient}.
+     * Lists the directory at <code>path</code>, reusing a listing fetched within {@link #LISTING_CACHE_MILLIS}.
+     * @param path The directory to list.
+     * @return The entries of the directory.
      */
-    private FTPClient getClient(String kind) {
-        Pair<ConnectionDetails, String> key = Pair.of(login, kind);
-        var client = ftpConnections.get(key);
-
-        if(isNull(client) || !client.isConnected()) {
-            client = new FTPClient();
-            FTPClientConfig config = new FTPClientConfig();
-            client.configure(config);
-            client.setListHiddenFiles(true);
-
-            try {
-                if (login.containsKey(PORT)) {
-                    client.connect(login.get(HOST), Integer.parseInt(login.get(PORT)));
-                } else {
-                    client.connect(login.get(HOST));
-                }
-
-                if (client.getReplyCode() != SERVICE_READY) {
-                    System.out.println("Failed to connect to " + login.get(HOST) + ". Unknown error");
-                    System.out.print(client.getReplyString());
-                }
-
-                if (nonNull(login.get(USERNAME))) {
-                    client.login(login.get(USERNAME), login.get(PASSWORD));
-                    if(client.getReplyCode() == NOT_LOGGED_IN) {
-                        throw new RuntimeException("Bad login! code: "+client.getReplyCode());
-                    } else if (client.getReplyCode() != USER_LOGGED_IN) {
-                        System.out.println("Failed to login as " + login.get(USERNAME) + ". Unknown error");
-                        System.out.print(client.getReplyString());
-                    }
-                }
-            } catch(IOException e) {
-                e.printStackTrace();
-                if(client.isConnected()) {
-                    try {
-                        client.disconnect();
-                    } catch(IOException ignored) {}
-                }
-            }
-
-            ftpConnections.put(key, client);
+    private FTPFile[] listDirectory(String path) throws Exception {
+        Pair<ConnectionDetails, String> key = Pair.of(login, path);
+        CachedListing listing = cachedListing(key);
+        if (nonNull(listing)) {
+            return listing.entries;
         }
 
-        return client;
+        FTPFile[] entries = withClient(c -> c.listFiles(path));
+        listingCache.put(key, new CachedListing(entries, System.currentTimeMillis() + LISTING_CACHE_MILLIS));
+        return entries;
     }
 
     /**
-     * Gets a default {@link FTPClient} for this {@link UFile}. Creates and connects if required.
-     * @return The {@link FTPClient}.
+     * Gets a cached listing that has not expired, dropping it if it has.
      */
-    public FTPClient getClient() {
-        return getClient("");
+    private static CachedListing cachedListing(Pair<ConnectionDetails, String> key) {
+        synchronized (listingCache) {
+            CachedListing listing = listingCache.get(key);
+            if (nonNull(listing) && listing.expiresAt < System.currentTimeMillis()) {
+                listingCache.remove(key);
+                return null;
+            }
+            return listing;
+        }
     }
 
     /**
-     * Removes a {@link FTPClient} from the cache map. Does not close connections.
-     * @param kind The specific version of the client. Allows for multiple connections to a single server to be maintained.
+     * Gets the name of a listed entry. Some servers list entries by their full path.
      */
-    private void removeClient(String kind) {
-        Pair<ConnectionDetails, String> key = Pair.of(login, kind);
+    private static String nameOf(FTPFile ftpFile) {
+        String name = ftpFile.getName();
+        int index = name.lastIndexOf("/");
+        return index == -1 ? name : name.substring(index+1);
+    }
 
+    private static boolean hasMlst(FTPClient client) {
         try {
-            ftpConnections.get(key).disconnect();
+            return client.hasFeature("MLST");
         } catch (IOException e) {
-            e.printStackTrace();
+            return false;
         }
-        ftpConnections.remove(key);
     }
 
     /**
-     * Removes the default {@link FTPClient} from the cache map. Does not close connections.
+     * Borrows a pooled {@link FTPClient} for the duration of <code>action</code>.
+     * @param action The commands to send.
+     * @return The result of <code>action</code>.
+     */
+    private <T> T withClient(ThrowableFunction<FTPClient, T> action) throws Exception {
+        return FtpConnectionPool.SHARED.execute(login, action);
+    }
+
+    /**
+     * Waits for the server to confirm the transfer of a finished stream and hands its client back to the pool.
+     * @param client The client borrowed for the stream, or null if no stream is open.
+     * @param stoppedEarly Whether the stream may have been closed before the end of the transfer, so an aborted
+     *                     transfer is expected.
      */
-    private void removeClient() {
-        removeClient("");
+    private void completeStream(FTPClient client, boolean stoppedEarly) {
+        if (isNull(client)) return;
+        boolean completed;
+        try {
+            completed = client.completePendingCommand()
+                    || (stoppedEarly && client.getReplyCode() == FTPReply.TRANSFER_ABORTED);
+        } catch (IOException e) {
+            FtpConnectionPool.SHARED.invalidate(login, client);
+            throw new RuntimeException(e);
+        }
+        String reply = client.getReplyString();
+        FtpConnectionPool.SHARED.release(login, client);
+        if (!completed) {
+            throw new RuntimeException("Transfer of "+this+" failed: "+reply);
+        }
     }
 
 }
@@ -1,23 +1,45 @@
 package com.sf298.universal.file.services.platforms;
 
+import com.sf298.universal.file.model.functions.UFileGlobFilter;
 import com.sf298.universal.file.model.responses.*;
+import com.sf298.universal.file.services.UFChangeFeed;
+import com.sf298.universal.file.services.UFMetadataCache;
 import com.sf298.universal.file.services.UFile;
+import com.sf298.universal.file.utils.BoundedInputStream;
+import com.sf298.universal.file.utils.MappedInputStream;
+import com.sf298.universal.file.utils.PagedIterator;
 
 import java.io.*;
 import java.net.URI;
-import java.nio.file.Files;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.Objects;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import static java.nio.file.StandardOpenOption.*;
 import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 
 public class UFileLocalDisk extends UFile {
 
+    static {
+        UFMetadataCache.SHARED.setTtl(UFileLocalDisk.class, 1_000);
+    }
+
+    /**
+     * The default size of each mapped window. A single {@link MappedByteBuffer} cannot exceed 2GB.
+     */
+    public static final long DEFAULT_MAP_WINDOW_SIZE = 1L << 30;
+
     private final File file;
+    private boolean mappedReads = false;
+    private long mapWindowSize = DEFAULT_MAP_WINDOW_SIZE;
     private OutputStream writeUploader;
     private OutputStream appendUploader;
 
@@ -141,6 +163,16 @@ public class UFileLocalDisk extends UFile {
         this(new File(uri));
     }
 
+    /**
+     * Creates a new {@link UFile} for a listed directory entry, caching the attributes read while listing.
+     * @param path The listed entry.
+     * @param attributes The attributes of the entry.
+     */
+    private UFileLocalDisk(Path path, BasicFileAttributes attributes) {
+        this(path.toFile());
+        cacheMetadata(attributesToUFMetadata(attributes));
+    }
+
     @Override
     public String getFileSep() {
         return File.separator;
@@ -153,19 +185,28 @@ public class UFileLocalDisk extends UFile {
     }
 
 
+    @Override
+    protected UFMetadata fetchMetadata() throws IOException {
+        try {
+            return attributesToUFMetadata(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            return UFMetadata.NOT_EXIST;
+        }
+    }
+
     @Override
     public UFOperationResult<Boolean> exists() {
-        return new UFOperationResult<>(this, file::exists);
+        return new UFOperationResult<>(this, () -> readMetadata().isExists());
     }
 
     @Override
     public UFOperationResult<Boolean> isDirectory() {
-        return new UFOperationResult<>(this, file::isDirectory);
+        return new UFOperationResult<>(this, () -> readMetadata().isFolder());
     }
 
     @Override
     public UFOperationResult<Boolean> isFile() {
-        return new UFOperationResult<>(this, file::isFile);
+        return new UFOperationResult<>(this, () -> readMetadata().isFile());
     }
 
     @Override
@@ -182,47 +223,111 @@ public class UFileLocalDisk extends UFile {
             BasicFileAttributeView attributes = Files.getFileAttributeView(file.toPath(), BasicFileAttributeView.class);
             BasicFileAttributes attr = attributes.readAttributes();
             attributes.setTimes(attr.lastModifiedTime(), attr.lastAccessTime(), FileTime.fromMillis(time.getTime()));
+            clearCache();
             return true;
         });
     }
 
     @Override
     public UFOperationResult<Date> lastModified() {
-        return new UFOperationResult<>(this, () -> new Date(file.lastModified()));
+        return new UFOperationResult<>(this, () -> {
+            UFMetadata metadata = readMetadata();
+            return metadata.isExists() ? metadata.getLastModified() : new Date(0);
+        });
     }
 
     @Override
     public UFOperationResult<Boolean> setLastModified(Date time) {
-        return new UFOperationResult<>(this, () -> file.setLastModified(time.getTime()));
+        return new UFOperationResult<>(this, () -> {
+            try {
+                return file.setLastModified(time.getTime());
+            } finally {
+                clearCache();
+            }
+        });
     }
 
     @Override
     public UFOperationResult<Long> length() {
-        return new UFOperationResult<>(this, file::length);
+        return new UFOperationResult<>(this, () -> {
+            UFMetadata metadata = readMetadata();
+            return metadata.isExists() ? metadata.getLength() : 0L;
+        });
     }
 
 
     @Override
     public UFOperationResult<Boolean> createNewFile() {
-        return new UFOperationResult<>(this, file::createNewFile);
+        return new UFOperationResult<>(this, () -> {
+            try {
+                return file.createNewFile();
+            } finally {
+                clearCache();
+            }
+        });
     }
 
     @Override
     public UFOperationResult<Boolean> delete() {
-        return new UFOperationResult<>(this, file::delete);
+        return new UFOperationResult<>(this, () -> {
+            try {
+                return file.delete();
+            } finally {
+                clearCache();
+            }
+        });
     }
 
     @Override
     public UFOperationResult<Boolean> deleteRecursive() {
-        if (isDirectory().getResultOrDefault(false)) {
-            UFOperationResult<UFile[]> children = listFiles();
-            if (!children.isSuccessful()) {
-                return new UFOperationResult<>(this, children.getException());
-            }
+        return summariseDelete(deleteRecursiveBatch());
+    }
 
-            Arrays.stream(children.getResult()).forEach(UFile::deleteRecursive);
+    /**
+     * Deletes the tree in a single post-order {@link Files#walkFileTree} pass, so each entry is only visited once.
+     * Symbolic links are deleted rather than followed.
+     */
+    @Override
+    public UFOperationBatchResult<Boolean> deleteRecursiveBatch() {
+        UFOperationBatchResult<Boolean> results = new UFOperationBatchResult<>();
+        Path start = file.toPath();
+        if (!Files.isDirectory(start, LinkOption.NOFOLLOW_LINKS)) {
+            results.add(delete());
+            return results;
         }
-        return delete();
+
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    results.add(deletePath(path));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    results.add(new UFOperationResult<>(new UFileLocalDisk(path.toFile()), e));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    results.add(isNull(e) ? deletePath(dir) : new UFOperationResult<>(new UFileLocalDisk(dir.toFile()), e));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            results.add(new UFOperationResult<>(this, e));
+        }
+        UFMetadataCache.SHARED.invalidateTree(this);
+        return results;
+    }
+
+    private static UFOperationResult<Boolean> deletePath(Path path) {
+        return new UFOperationResult<>(new UFileLocalDisk(path.toFile()), () -> {
+            Files.delete(path);
+            return true;
+        });
     }
 
     @Override
@@ -232,30 +337,202 @@ public class UFileLocalDisk extends UFile {
 
     @Override
     public UFOperationResult<UFile[]> listFiles() {
-        return new UFOperationResult<>(this,
-                () -> Arrays.stream(list().getResult()).map(this::stepInto).toArray(UFile[]::new));
+        return new UFOperationResult<>(this, () -> {
+            Path start = file.toPath();
+            if (!Files.isDirectory(start)) {
+                throw new NotDirectoryException(start.toString());
+            }
+
+            // the walker hands over the attributes it read for each entry, from the listing itself where the OS allows
+            List<UFile> children = new ArrayList<>();
+            Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    children.add(new UFileLocalDisk(path, attributes));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) throws IOException {
+                    if (path.equals(start)) throw e;
+                    // the entry was removed while listing
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return children.toArray(UFile[]::new);
+        });
+    }
+
+    @Override
+    public UFOperationResult<Stream<UFile>> streamFiles() {
+        return new UFOperationResult<>(this, () -> streamEntries(Files.newDirectoryStream(file.toPath())));
+    }
+
+    /**
+     * Watches the tree with a {@link WatchService}, so each poll only lists the directories that changed.
+     */
+    @Override
+    public UFOperationResult<UFChangeFeed> changeFeed(String position) {
+        return new UFOperationResult<>(this, () -> new LocalDiskChangeFeed(this, position));
+    }
+
+    /**
+     * Lets the {@link DirectoryStream} match the glob while reading the directory, so no {@link UFile} or
+     * attributes are created for entries that do not match.
+     */
+    @Override
+    protected UFOperationResult<UFile[]> listFilesMatching(UFileGlobFilter glob) {
+        return new UFOperationResult<>(this, () -> {
+            try (Stream<UFile> entries = streamEntries(Files.newDirectoryStream(file.toPath(), glob.getGlob()))) {
+                return entries.toArray(UFile[]::new);
+            }
+        });
+    }
+
+    /**
+     * Converts the entries of an open {@link DirectoryStream} into {@link UFile}s carrying their attributes.
+     * Closing the returned stream closes the {@link DirectoryStream}.
+     */
+    private Stream<UFile> streamEntries(DirectoryStream<Path> entries) {
+        return StreamSupport.stream(entries.spliterator(), false)
+                .map(path -> {
+                    try {
+                        return (UFile) new UFileLocalDisk(path, Files.readAttributes(path, BasicFileAttributes.class));
+                    } catch (NoSuchFileException e) {
+                        // the entry was removed while listing
+                        return null;
+                    } catch (IOException e) {
+                        throw new PagedIterator.PageFetchException(e);
+                    }
+                })
+                .filter(Objects::nonNull)
+                .onClose(() -> {
+                    try {
+                        entries.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
     }
 
     @Override
     public UFOperationResult<Boolean> mkdir() {
-        return new UFOperationResult<>(this, file::mkdir);
+        return new UFOperationResult<>(this, () -> {
+            try {
+                return file.mkdir();
+            } finally {
+                clearCache();
+            }
+        });
     }
 
     @Override
     public UFOperationResult<Boolean> mkdirs() {
-        return new UFOperationResult<>(this, file::mkdirs);
+        return new UFOperationResult<>(this, () -> {
+            try {
+                return file.mkdirs();
+            } finally {
+                for (UFile f = this; nonNull(f); f = f.getParentUFile()) {
+                    f.clearCache();
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks whether {@link #read()} and {@link #read(long, long)} read through memory-mapped windows.
+     * @return <code>true</code> if mapped reads are enabled.
+     */
+    public boolean isMappedReads() {
+        return mappedReads;
+    }
+
+    /**
+     * Sets whether {@link #read()} and {@link #read(long, long)} read through memory-mapped windows.
+     * Repeated reads of the same file are then served from the page cache without a system call per buffer.
+     * @param mappedReads <code>true</code> to enable mapped reads.
+     */
+    public void setMappedReads(boolean mappedReads) {
+        this.mappedReads = mappedReads;
+    }
+
+    /**
+     * Get the size of each window used by {@link #readMapped()}.
+     * @return The window size in bytes.
+     */
+    public long getMapWindowSize() {
+        return mapWindowSize;
+    }
+
+    /**
+     * Set the size of each window used by {@link #readMapped()}.
+     * @param mapWindowSize The window size in bytes, at most {@link Integer#MAX_VALUE}.
+     */
+    public void setMapWindowSize(long mapWindowSize) {
+        if (mapWindowSize <= 0 || mapWindowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window size must be between 1 and "+Integer.MAX_VALUE+" bytes");
+        }
+        this.mapWindowSize = mapWindowSize;
+    }
+
+    /**
+     * Maps the file denoted by this {@link UFile} into memory as read-only windows of {@link #getMapWindowSize()}
+     * bytes, so files over 2GB can be mapped. The mappings stay valid until they are garbage collected.
+     * @return The mapped windows in file order. Empty if the file is empty.
+     * @throws IOException If an I/O error occurred.
+     */
+    public List<MappedByteBuffer> readMapped() throws IOException {
+        return readMapped(0, -1);
+    }
+
+    /**
+     * Maps part of the file denoted by this {@link UFile} into memory, like {@link #readMapped()}.
+     * @param offset The position of the first byte to map.
+     * @param length The number of bytes to map, or a negative number to map to the end of the file.
+     * @return The mapped windows covering the range in file order. Empty if the range is past the end of the file.
+     * @throws IOException If an I/O error occurred.
+     */
+    public List<MappedByteBuffer> readMapped(long offset, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            long end = length < 0 ? channel.size() : Math.min(channel.size(), offset + length);
+            List<MappedByteBuffer> windows = new ArrayList<>();
+            for (long position = offset; position < end; position += mapWindowSize) {
+                windows.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(mapWindowSize, end - position)));
+            }
+            return windows;
+        }
     }
 
     @Override
     public InputStream read() throws IOException {
+        if (mappedReads) {
+            return new MappedInputStream(readMapped());
+        }
         return new FileInputStream(file);
     }
 
+    @Override
+    public InputStream read(long offset, long length) throws IOException {
+        if (mappedReads) {
+            return new MappedInputStream(readMapped(offset, length));
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), READ).position(offset);
+        InputStream in = Channels.newInputStream(channel);
+        return length < 0 ? in : new BoundedInputStream(in, length);
+    }
+
+    @Override
+    public boolean supportsRangedRead() {
+        return true;
+    }
+
     @Override
     public void readClose() {}
 
     @Override
     public OutputStream write() throws IOException {
+        clearCache();
         writeUploader = new FileOutputStream(file, true);
         return writeUploader;
     }
@@ -267,6 +544,7 @@ public class UFileLocalDisk extends UFile {
             writeUploader.flush();
             writeUploader.close();
             writeUploader = null;
+            clearCache();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -274,6 +552,7 @@ public class UFileLocalDisk extends UFile {
 
     @Override
     public OutputStream append() throws IOException {
+        clearCache();
         appendUploader = new FileOutputStream(file, true);
         return appendUploader;
     }
@@ -285,6 +564,7 @@ public class UFileLocalDisk extends UFile {
             appendUploader.flush();
             appendUploader.close();
             appendUploader = null;
+            clearCache();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -293,6 +573,34 @@ public class UFileLocalDisk extends UFile {
     @Override
     public void close() {}
 
+    @Override
+    public UFOperationResult<Boolean> copyTo(UFile destination) {
+        if (!(destination instanceof UFileLocalDisk)) {
+            return super.copyTo(destination);
+        }
+
+        return new UFOperationResult<>(this, () -> {
+            destination.getParentUFile().mkdirs();
+            File destFile = ((UFileLocalDisk) destination).file;
+            try (FileChannel in = FileChannel.open(file.toPath(), READ);
+                 FileChannel out = FileChannel.open(destFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+                long size = in.size();
+
+                // transferTo may copy fewer bytes than requested, so loop until the whole file is done
+                long position = 0;
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    if (transferred <= 0) {
+                        throw new IOException("Copy of '"+getPath()+"' stalled at byte "+position+" of "+size);
+                    }
+                    position += transferred;
+                }
+            }
+            destination.clearCache();
+            return true;
+        });
+    }
+
     @Override
     public UFOperationResult<Boolean> moveTo(UFile destination) {
         if (destination instanceof UFileLocalDisk) {
@@ -303,6 +611,7 @@ public class UFileLocalDisk extends UFile {
 
                 destination.getParentUFile().mkdirs();
                 boolean result = file.renameTo(((UFileLocalDisk)destination).file);
+                UFMetadataCache.SHARED.invalidateTrees(List.of(this, destination));
                 if(!result) {
                     throw new RuntimeException("Unknown error occurred. Could not move '"+getPath()+"' to '"+destination.getPath()+"'");
                 }
@@ -324,8 +633,10 @@ public class UFileLocalDisk extends UFile {
         return new UFileLocalDisk(path);
     }
 
-    @Override
-    public void clearCache() {}
+    private static UFMetadata attributesToUFMetadata(BasicFileAttributes attributes) {
+        return new UFMetadata(true, attributes.size(), new Date(attributes.creationTime().toMillis()),
+                new Date(attributes.lastModifiedTime().toMillis()), attributes.isRegularFile(), attributes.isDirectory());
+    }
 
     @Override
     public String toString() {
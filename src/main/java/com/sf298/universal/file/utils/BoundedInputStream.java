@@ -0,0 +1,76 @@
+package com.sf298.universal.file.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that stops after a fixed number of bytes have been read from the wrapped stream.
+ * Closing this stream closes the wrapped stream.
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    /**
+     * @param in The stream to read from.
+     * @param limit The maximum number of bytes to return.
+     */
+    public BoundedInputStream(InputStream in, long limit) {
+        super(in);
+        this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) return -1;
+        int b = super.read();
+        if (b >= 0) remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) return -1;
+        int lengthRead = super.read(b, off, (int) Math.min(len, remaining));
+        if (lengthRead > 0) remaining -= lengthRead;
+        return lengthRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Discards exactly <code>n</code> bytes from <code>in</code>, reading through them if the stream cannot skip.
+     * @param in The stream to advance.
+     * @param n The number of bytes to discard.
+     * @throws IOException If the stream ends before <code>n</code> bytes were discarded.
+     */
+    public static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Reached end of stream with "+n+" bytes left to skip");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.sf298.universal.file.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the Dropbox <code>content_hash</code> of a stream of bytes without holding the file in memory.
+ * The data is split into 4MB blocks, each block is hashed with SHA-256, and the hash is the SHA-256 of the
+ * concatenated block hashes, as a lowercase hex string.
+ *
+ * @see <a href="https://www.dropbox.com/developers/reference/content-hash">Dropbox content hash</a>
+ */
+public class DropboxContentHasher {
+
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private final MessageDigest overallHasher = newSha256();
+    private final MessageDigest blockHasher = newSha256();
+    private int blockPosition = 0;
+
+    public void update(byte[] input, int offset, int length) {
+        int inputEnd = offset + length;
+        while (offset < inputEnd) {
+            if (blockPosition == BLOCK_SIZE) {
+                finishBlock();
+            }
+            int step = Math.min(inputEnd - offset, BLOCK_SIZE - blockPosition);
+            blockHasher.update(input, offset, step);
+            blockPosition += step;
+            offset += step;
+        }
+    }
+
+    /**
+     * Completes the hash. The hasher must not be used afterwards.
+     * @return The content hash as a lowercase hex string.
+     */
+    public String digest() {
+        if (blockPosition > 0) {
+            finishBlock();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : overallHasher.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads <code>in</code> to the end and computes its content hash. Does not close the stream.
+     * @param in The stream to hash.
+     * @return The content hash as a lowercase hex string.
+     * @throws IOException If an I/O error occurred.
+     */
+    public static String hash(InputStream in) throws IOException {
+        DropboxContentHasher hasher = new DropboxContentHasher();
+        byte[] buffer = new byte[64 * 1024];
+        int lengthRead;
+        while ((lengthRead = in.read(buffer)) > 0) {
+            hasher.update(buffer, 0, lengthRead);
+        }
+        return hasher.digest();
+    }
+
+    private void finishBlock() {
+        overallHasher.update(blockHasher.digest());
+        blockPosition = 0;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
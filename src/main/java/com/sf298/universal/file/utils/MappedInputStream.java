@@ -0,0 +1,71 @@
+package com.sf298.universal.file.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * An {@link InputStream} that reads consecutive memory-mapped windows of a file as one stream.
+ * Reads copy straight out of the mapped pages, so no system call is made per buffer.
+ */
+public class MappedInputStream extends InputStream {
+
+    private final List<? extends ByteBuffer> windows;
+    private int windowIndex = 0;
+
+    /**
+     * @param windows The mapped windows of the file, in file order. Each window is read from its current position.
+     */
+    public MappedInputStream(List<? extends ByteBuffer> windows) {
+        this.windows = windows;
+    }
+
+    @Override
+    public int read() {
+        ByteBuffer window = currentWindow();
+        return window == null ? -1 : window.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        ByteBuffer window = currentWindow();
+        if (window == null) return -1;
+
+        int lengthRead = Math.min(len, window.remaining());
+        window.get(b, off, lengthRead);
+        return lengthRead;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = 0;
+        ByteBuffer window;
+        while (skipped < n && (window = currentWindow()) != null) {
+            int step = (int) Math.min(n - skipped, window.remaining());
+            window.position(window.position() + step);
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        ByteBuffer window = currentWindow();
+        return window == null ? 0 : window.remaining();
+    }
+
+    /**
+     * Gets the window holding the next unread byte.
+     * @return The window, or null if every window has been read.
+     */
+    private ByteBuffer currentWindow() {
+        while (windowIndex < windows.size()) {
+            ByteBuffer window = windows.get(windowIndex);
+            if (window.hasRemaining()) return window;
+            windowIndex++;
+        }
+        return null;
+    }
+
+}
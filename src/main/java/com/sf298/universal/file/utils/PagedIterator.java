@@ -0,0 +1,83 @@
+package com.sf298.universal.file.utils;
+
+import com.sf298.universal.file.model.functions.ExceptionNet;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.util.Objects.isNull;
+
+/**
+ * An {@link Iterator} over a paginated source that only fetches the next page once the current one has been
+ * consumed, so at most one page is held in memory.
+ */
+public class PagedIterator<T> implements Iterator<T> {
+
+    private final ExceptionNet<List<T>, Exception> nextPage;
+    private Iterator<T> page = null;
+    private boolean finished = false;
+
+    /**
+     * @param nextPage Fetches the next page on each call, or returns null once there are no more pages.
+     */
+    public PagedIterator(ExceptionNet<List<T>, Exception> nextPage) {
+        this.nextPage = nextPage;
+    }
+
+    /**
+     * Creates a sequential {@link Stream} that fetches pages as it is consumed.
+     * @param nextPage Fetches the next page on each call, or returns null once there are no more pages.
+     * @return The lazily fetched stream.
+     */
+    public static <T> Stream<T> stream(ExceptionNet<List<T>, Exception> nextPage) {
+        Iterator<T> iterator = new PagedIterator<>(nextPage);
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @throws PageFetchException If the next page could not be fetched.
+     */
+    @Override
+    public boolean hasNext() {
+        while (!finished && (isNull(page) || !page.hasNext())) {
+            List<T> fetched;
+            try {
+                fetched = nextPage.run();
+            } catch (Exception e) {
+                throw new PageFetchException(e);
+            }
+            if (isNull(fetched)) {
+                finished = true;
+            } else {
+                page = fetched.iterator();
+            }
+        }
+        return !finished;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    /**
+     * Thrown while iterating when a page could not be fetched. The cause is the backend's exception.
+     */
+    public static class PageFetchException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public PageFetchException(Exception cause) {
+            super(cause);
+        }
+    }
+
+}
@@ -5,10 +5,15 @@ import com.sf298.universal.file.model.connection.ConnectionDetails;
 import com.sf298.universal.file.services.platforms.UFileFtp;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Map;
 
 import static com.sf298.universal.file.model.connection.ConnectionParam.*;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class UFileFtpTest extends UFileTest {
 
@@ -36,4 +41,26 @@ public class UFileFtpTest extends UFileTest {
     @Override
     public void testLastModified() {}
 
+    @Test
+    public void testReadRangeStopsEarly() throws IOException {
+        // large enough that the server is still sending when the ranged read is closed
+        byte[] contents = new byte[4 * 1024 * 1024];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        UFile file = root.stepInto("ranged.bin");
+        try (OutputStream out = file.write()) {
+            out.write(contents);
+        }
+        file.writeClose();
+
+        for (int offset : new int[]{1_000_000, 2_000_000}) {
+            try (InputStream in = file.read(offset, 1000)) {
+                assertThat(in.readAllBytes()).isEqualTo(Arrays.copyOfRange(contents, offset, offset + 1000));
+                assertThatThrownBy(() -> file.read(0, 10)).isInstanceOf(IOException.class);
+            }
+            file.readClose();
+        }
+    }
+
 }
\ No newline at end of file
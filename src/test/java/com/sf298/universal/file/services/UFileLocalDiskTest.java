@@ -1,9 +1,33 @@
 package com.sf298.universal.file.services;
 
+import com.sf298.universal.file.enums.UFChangeType;
+import com.sf298.universal.file.model.inputs.BatchMove;
+import com.sf298.universal.file.model.responses.UFChangeEvent;
+import com.sf298.universal.file.model.responses.UFOperationBatchResult;
+import com.sf298.universal.file.model.responses.UFOperationResult;
 import com.sf298.universal.file.services.platforms.UFileLocalDisk;
+import com.sf298.universal.file.services.platforms.UFileLocalDiskBatch;
+import com.sf298.universal.file.utils.DropboxContentHasher;
+import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 
 public class UFileLocalDiskTest extends UFileTest {
 
@@ -21,4 +45,204 @@ public class UFileLocalDiskTest extends UFileTest {
         super(root);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testSegmentedTransfer() throws IOException {
+        String contents = "the quick brown fox jumps over the lazy dog";
+        UFile source = root.stepInto("segmented.txt");
+        OutputStream writeStream = source.write();
+        writeStream.write(contents.getBytes(StandardCharsets.UTF_8));
+        source.writeClose();
+
+        SegmentedTransfer transfer = new SegmentedTransfer(5, 3, 0);
+        assertThat(transfer.accepts(source, contents.length())).isTrue();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transfer.transfer(source, contents.length(), out);
+        assertThat(out.toString(StandardCharsets.UTF_8)).isEqualTo(contents);
+    }
+
+    @Test
+    public void testMappedRead() throws IOException {
+        String contents = "the quick brown fox jumps over the lazy dog";
+        UFileLocalDisk source = (UFileLocalDisk) root.stepInto("mapped.txt");
+        OutputStream writeStream = source.write();
+        writeStream.write(contents.getBytes(StandardCharsets.UTF_8));
+        source.writeClose();
+
+        source.setMappedReads(true);
+        source.setMapWindowSize(4);
+        assertThat(source.readMapped()).hasSize(11);
+        assertThat(new String(source.read().readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(contents);
+        assertThat(new String(source.read(4, 5).readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("quick");
+        assertThat(source.readMapped(4, 5)).hasSize(2);
+        assertThat(new String(source.read(40, 10).readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("dog");
+    }
+
+    @Test
+    public void testContentHash() throws IOException, NoSuchAlgorithmException {
+        byte[] contents = "the quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+        UFile source = root.stepInto("hashed.txt");
+        OutputStream writeStream = source.write();
+        writeStream.write(contents);
+        source.writeClose();
+
+        // a single block hashes to sha256(sha256(contents))
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[] expected = sha256.digest(sha256.digest(contents));
+        StringBuilder expectedHex = new StringBuilder();
+        for (byte b : expected) {
+            expectedHex.append(String.format("%02x", b));
+        }
+
+        assertThat(DropboxContentHasher.hash(source.read())).isEqualTo(expectedHex.toString());
+        assertThat(source.contentMatches(source).getResult()).isFalse();
+    }
+
+    @Test
+    public void testContentHashMultipleBlocks() throws IOException, NoSuchAlgorithmException {
+        byte[] contents = new byte[2 * DropboxContentHasher.BLOCK_SIZE + 1000];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 31 + i / 7);
+        }
+
+        // the hash of the concatenated hashes of each 4MiB block
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        MessageDigest overall = MessageDigest.getInstance("SHA-256");
+        for (int offset = 0; offset < contents.length; offset += DropboxContentHasher.BLOCK_SIZE) {
+            sha256.update(contents, offset, Math.min(DropboxContentHasher.BLOCK_SIZE, contents.length - offset));
+            overall.update(sha256.digest());
+        }
+        StringBuilder expectedHex = new StringBuilder();
+        for (byte b : overall.digest()) {
+            expectedHex.append(String.format("%02x", b));
+        }
+
+        assertThat(DropboxContentHasher.hash(new ByteArrayInputStream(contents))).isEqualTo(expectedHex.toString());
+
+        // block boundaries do not depend on how the input is split
+        DropboxContentHasher hasher = new DropboxContentHasher();
+        for (int offset = 0; offset < contents.length; offset += 1_000_003) {
+            hasher.update(contents, offset, Math.min(1_000_003, contents.length - offset));
+        }
+        assertThat(hasher.digest()).isEqualTo(expectedHex.toString());
+    }
+
+    @Test
+    public void testMetadataCache() throws IOException {
+        UFile cached = root.stepInto("cached.txt");
+        OutputStream writeStream = cached.write();
+        writeStream.write(new byte[]{1, 2, 3});
+        cached.writeClose();
+
+        long hits = UFMetadataCache.SHARED.getHitCount();
+        assertThat(cached.length().getResult()).isEqualTo(3L);
+        assertThat(root.stepInto("cached.txt").isFile().getResult()).isTrue();
+        assertThat(UFMetadataCache.SHARED.getHitCount()).isGreaterThan(hits);
+
+        assertThat(cached.delete().getResult()).isTrue();
+        assertThat(root.stepInto("cached.txt").exists().getResult()).isFalse();
+    }
+
+    @Test
+    public void testAsyncBatch() {
+        List<UFile> targets = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            UFile f = root.stepInto("async" + i + ".txt");
+            if (i % 2 == 0) {
+                assertThat(f.createNewFile().getResult()).isTrue();
+            }
+            targets.add(f);
+        }
+
+        UFileAsyncBatch<UFile> batch = new UFileAsyncBatch<>(UFileAsyncBatch.defaultExecutor(), 3);
+        UFOperationBatchResult<Boolean> results = batch.exists(targets).join();
+        assertThat(results).hasSize(20);
+        for (int i = 0; i < 20; i++) {
+            assertThat(results.get(i).getActionedFile()).isEqualTo(targets.get(i));
+            assertThat(results.get(i).getResult()).isEqualTo(i % 2 == 0);
+        }
+    }
+
+    @Test
+    public void testAsyncBatchLimitsCopiesPerBackend() {
+        List<UFile> sources = new ArrayList<>();
+        List<BatchMove> copies = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            UFile f = root.stepInto("limited" + i + ".txt");
+            assertThat(f.createNewFile().getResult()).isTrue();
+            sources.add(f);
+            copies.add(new BatchMove(f, root.stepInto("limitedCopy" + i + ".txt")));
+        }
+
+        // a slot is held from the start of a task until it finishes, so count tasks while they hold one
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        Executor counting = task -> pool.execute(() -> {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {}
+            running.decrementAndGet();
+            task.run();
+        });
+
+        UFileAsyncBatch<UFile> batch = new UFileAsyncBatch<>(counting, 2);
+        CompletableFuture<UFOperationBatchResult<Boolean>> copied = batch.copyTo(copies);
+        CompletableFuture<UFOperationBatchResult<Boolean>> found = batch.exists(sources);
+        assertThat(copied.join()).extracting(UFOperationResult::getResult).containsOnly(true);
+        assertThat(found.join()).extracting(UFOperationResult::getResult).containsOnly(true);
+        assertThat(peak.get()).isEqualTo(2);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testManagerBatch() {
+        UFile existing = root.stepInto("manager.txt");
+        assertThat(existing.createNewFile().getResult()).isTrue();
+        UFile missing = root.stepInto("managerMissing.txt");
+
+        UFOperationBatchResult<Boolean> results = UFileManager.existsBatch(List.of(missing, existing, missing));
+        assertThat(results).extracting(UFOperationResult::getResult).containsExactly(false, true, false);
+        assertThat(UFileManager.getBatch(UFileLocalDisk.class)).isSameAs(UFileLocalDiskBatch.LOCAL_DISK_BATCH);
+    }
+
+    @Test
+    public void testChangeFeedWatchesNewDirectories() throws IOException {
+        try (UFChangeFeed feed = root.changeFeed(null).getResult()) {
+            UFile dir = root.stepInto("watched");
+            UFile nested = dir.stepInto("nested.txt");
+            assertThat(dir.mkdirs().getResult()).isTrue();
+            assertThat(nested.createNewFile().getResult()).isTrue();
+
+            List<UFChangeEvent> events = new ArrayList<>(feed.poll(2_000).getResult());
+            events.addAll(feed.poll().getResult());
+            assertThat(events).anyMatch(e -> e.getFile().equals(dir) && e.getType() == UFChangeType.CREATED);
+            assertThat(events).anyMatch(e -> e.getFile().equals(nested) && e.getType() == UFChangeType.CREATED);
+
+            // changes inside the new directory are watched too
+            try (OutputStream out = nested.write()) {
+                out.write("changed".getBytes(StandardCharsets.UTF_8));
+            }
+            nested.writeClose();
+            assertThat(feed.poll(2_000).getResult())
+                    .anyMatch(e -> e.getFile().equals(nested) && e.getType() == UFChangeType.MODIFIED);
+        }
+    }
+
+    @Test
+    public void testSnapshotChangeFeed() throws Exception {
+        UFile file = root.stepInto("snapshot.txt");
+        UFSnapshotChangeFeed feed = new UFSnapshotChangeFeed(root, null);
+        assertThat(file.createNewFile().getResult()).isTrue();
+        assertThat(feed.poll().getResult()).extracting(UFChangeEvent::getFile, UFChangeEvent::getType)
+                .containsExactly(tuple(file, UFChangeType.CREATED));
+
+        UFSnapshotChangeFeed resumed = new UFSnapshotChangeFeed(root, feed.getPosition());
+        assertThat(resumed.poll().getResult()).isEmpty();
+        assertThat(file.delete().getResult()).isTrue();
+        assertThat(resumed.poll().getResult()).extracting(UFChangeEvent::getFile, UFChangeEvent::getType)
+                .containsExactly(tuple(file, UFChangeType.DELETED));
+    }
+
+}
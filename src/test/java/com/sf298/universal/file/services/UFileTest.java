@@ -1,11 +1,16 @@
 package com.sf298.universal.file.services;
 
+import com.sf298.universal.file.enums.UFChangeType;
+import com.sf298.universal.file.model.functions.UFileGlobFilter;
+import com.sf298.universal.file.model.responses.UFChangeEvent;
+import com.sf298.universal.file.model.responses.UFOperationBatchResult;
 import com.sf298.universal.file.model.responses.UFOperationResult;
 import org.junit.jupiter.api.*;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.stream.Stream;
 
 import static java.util.Objects.isNull;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -174,6 +179,49 @@ public abstract class UFileTest {
     }
 
 
+    @Test
+    public void testDeleteRecursiveBatch() {
+        UFOperationBatchResult<Boolean> results = uFolder1.deleteRecursiveBatch();
+        assertThat(results.allSuccessful()).isTrue();
+        assertThat(results).allMatch(UFOperationResult::getResult);
+        assertThat(uFolder1.exists().getResult()).isFalse();
+        assertThat(uFile11.exists().getResult()).isFalse();
+        assertThat(uFile1.exists().getResult()).isTrue();
+    }
+
+    @Test
+    public void testChangeFeed() {
+        UFile created = root.stepInto("feed.txt");
+        String position;
+        try (UFChangeFeed feed = root.changeFeed(null).getResult()) {
+            assertThat(feed.poll().getResult()).isEmpty();
+
+            assertThat(created.createNewFile().getResult()).isTrue();
+            assertThat(uFile1.delete().getResult()).isTrue();
+            List<UFChangeEvent> events = pollUntil(feed, 2);
+            assertThat(events).anyMatch(e -> e.getFile().getName().equals("feed.txt") && e.getType() != UFChangeType.DELETED);
+            assertThat(events).anyMatch(e -> e.getFile().getName().equals(file1) && e.getType() == UFChangeType.DELETED);
+            position = feed.getPosition();
+        }
+
+        // resume from the saved position
+        assertThat(created.delete().getResult()).isTrue();
+        try (UFChangeFeed feed = root.changeFeed(position).getResult()) {
+            List<UFChangeEvent> events = pollUntil(feed, 1);
+            assertThat(events).anyMatch(e -> e.getFile().getName().equals("feed.txt") && e.getType() == UFChangeType.DELETED);
+            assertThat(events).noneMatch(e -> e.getFile().getName().equals(file1));
+        }
+    }
+    private static List<UFChangeEvent> pollUntil(UFChangeFeed feed, int count) {
+        List<UFChangeEvent> events = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (events.size() < count && System.currentTimeMillis() < deadline) {
+            feed.setPollIntervalMillis(200);
+            events.addAll(feed.poll(1_000).getResult());
+        }
+        return events;
+    }
+
     @Test
     public void testList() {
         String[] filesFound = root.list().getResult();
@@ -205,6 +253,51 @@ public abstract class UFileTest {
         assertThat(filesFound).containsExactlyInAnyOrder(uFolder1);
     }
 
+    @Test
+    public void testListFilesGlob() {
+        assertThat(root.listFiles(new UFileGlobFilter("*.txt")).getResult()).containsExactlyInAnyOrder(uFile1);
+        assertThat(root.listFiles(new UFileGlobFilter("file1.txt")).getResult()).containsExactlyInAnyOrder(uFile1);
+        assertThat(root.listFiles(new UFileGlobFilter("{file,folder}[0-9]*")).getResult()).containsExactlyInAnyOrder(uFile1, uFolder1);
+        assertThat(root.list(new UFileGlobFilter("folder?")).getResult()).containsExactlyInAnyOrder(folder1);
+        assertThat(root.list(new UFileGlobFilter("*.csv")).getResult()).isEmpty();
+        // matching directories are listed themselves, not their contents
+        assertThat(root.listFiles(new UFileGlobFilter(folder1)).getResult()).containsExactlyInAnyOrder(uFolder1);
+        assertThat(root.list(new UFileGlobFilter("fold*")).getResult()).containsExactlyInAnyOrder(folder1);
+        assertThat(root.list(new UFileGlobFilter("missing.txt")).getResult()).isEmpty();
+    }
+
+    @Test
+    public void testStreamFiles() {
+        try (Stream<UFile> filesFound = root.streamFiles().getResult()) {
+            assertThat(filesFound).containsExactlyInAnyOrder(uFile1, uFolder1);
+        }
+    }
+
+    @Test
+    public void testStreamFilesRecursive() {
+        try (Stream<UFile> filesFound = root.streamFilesRecursive().getResult()) {
+            assertThat(filesFound).containsExactlyInAnyOrder(uFile1, uFolder1, uFolder11, uFolder111, uFile11);
+        }
+    }
+
+    @Test
+    public void testTreeWalker() {
+        List<UFile> filesFound = new ArrayList<>();
+        assertThat(root.listFilesRecursiveBatch(batch -> filesFound.addAll(Arrays.asList(batch))).getResult()).isTrue();
+        assertThat(filesFound).containsExactlyInAnyOrder(uFile1, uFolder1, uFolder11, uFolder111, uFile11);
+
+        UFileTreeWalker walker = new UFileTreeWalker(2);
+        walker.setPrune(dir -> dir.equals(uFolder11));
+        filesFound.clear();
+        assertThat(walker.walk(root, batch -> filesFound.addAll(Arrays.asList(batch))).getResult()).isTrue();
+        assertThat(filesFound).containsExactlyInAnyOrder(uFile1, uFolder1, uFolder11);
+
+        walker.setMaxDepth(1);
+        filesFound.clear();
+        assertThat(walker.walk(root, batch -> filesFound.addAll(Arrays.asList(batch))).getResult()).isTrue();
+        assertThat(filesFound).containsExactlyInAnyOrder(uFile1, uFolder1);
+    }
+
 
     @Test
     @Order(1)
@@ -214,6 +307,16 @@ public abstract class UFileTest {
         assertThat(folders.exists().getResult()).isFalse();
     }
 
+    @Test
+    public void testMkdirBatchCreatesParentsFirst() {
+        UFile parent = root.stepInto("mkdirBatch");
+        UFile child = parent.stepInto("child");
+        UFile orphan = root.stepInto("mkdirBatchMissing").stepInto("child");
+        UFOperationBatchResult<Boolean> results = UFileManager.mkdirBatch(List.of(parent, child, orphan));
+        assertThat(results).extracting(UFOperationResult::getResult).containsExactly(true, true, false);
+        assertThat(child.isDirectory().getResult()).isTrue();
+    }
+
     @Test
     @Order(0)
     public void testMkdirs() {
@@ -238,6 +341,24 @@ public abstract class UFileTest {
         assertThat(result1).isEqualTo(contents1);
     }
 
+    @Test
+    public void testFileReadRange() throws IOException {
+        PrintWriter writeStream = new PrintWriter(uFile1.write());
+        writeStream.write("0123456789");
+        writeStream.flush();
+        uFile1.writeClose();
+
+        Scanner s1 = new Scanner(uFile1.read(3, 4)).useDelimiter("\\A");
+        String result1 = s1.hasNext() ? s1.next() : "";
+        uFile1.readClose();
+        assertThat(result1).isEqualTo("3456");
+
+        Scanner s2 = new Scanner(uFile1.read(7, -1)).useDelimiter("\\A");
+        String result2 = s2.hasNext() ? s2.next() : "";
+        uFile1.readClose();
+        assertThat(result2).isEqualTo("789");
+    }
+
     @Test
     public void testFileAppend() throws IOException, InterruptedException {
         String contents1 = "test File" + System.lineSeparator() + "Contents";
@@ -259,6 +380,30 @@ public abstract class UFileTest {
         assertThat(result2).isEqualTo(contents1 + contents2);
     }
 
+    @Test
+    public void testAppendBuffer() throws IOException {
+        UFileAppendBuffer appendBuffer = new UFileAppendBuffer(uFile1, 6, 0, 4);
+
+        PrintWriter appendStream = new PrintWriter(appendBuffer.append());
+        appendStream.write("abc");
+        appendStream.flush();
+        appendBuffer.appendClose();
+        assertThat(appendBuffer.getBufferedLength()).isEqualTo(3);
+        uFile1.clearCache();
+        assertThat(uFile1.length().getResult()).isZero();
+
+        appendStream = new PrintWriter(appendBuffer.append());
+        appendStream.write("def");
+        appendStream.flush();
+        appendBuffer.appendClose();
+        assertThat(appendBuffer.getBufferedLength()).isZero();
+
+        Scanner s1 = new Scanner(uFile1.read()).useDelimiter("\\A");
+        String result1 = s1.hasNext() ? s1.next() : "";
+        uFile1.readClose();
+        assertThat(result1).isEqualTo("abcdef");
+    }
+
 
     @Test
     public void testCopyTo() throws IOException {
@@ -0,0 +1,91 @@
+package com.sf298.universal.file.services.platforms;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.RateLimitException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DropboxJobPollerTest {
+
+    private final DropboxJobPoller poller = new DropboxJobPoller(1, 10, 40);
+
+    @Test
+    public void testBackoffGrowsToMax() {
+        List<Long> checks = Collections.synchronizedList(new ArrayList<>());
+        int status = poller.poll(() -> {
+            checks.add(System.nanoTime());
+            return checks.size();
+        }, n -> n < 7).join();
+        assertThat(status).isEqualTo(7);
+
+        // 10ms grows by half after each check, up to 40ms
+        long[] delays = {15, 22, 33, 40, 40, 40};
+        for (int i = 0; i < delays.length; i++) {
+            assertThat(gapMillis(checks, i)).isGreaterThanOrEqualTo(delays[i]);
+        }
+        // uncapped, the last delay would have been 113ms
+        assertThat(gapMillis(checks, delays.length - 1)).isLessThan(113);
+        assertThat(poller.getOutstandingCount()).isZero();
+    }
+
+    @Test
+    public void testRateLimitWaitsForBackoff() {
+        List<Long> checks = Collections.synchronizedList(new ArrayList<>());
+        String status = poller.poll(() -> {
+            checks.add(System.nanoTime());
+            if (checks.size() == 1) {
+                throw new RateLimitException("request", "too many requests", 200, TimeUnit.MILLISECONDS);
+            }
+            return "complete";
+        }, s -> false).join();
+        assertThat(status).isEqualTo("complete");
+        assertThat(gapMillis(checks, 0)).isGreaterThanOrEqualTo(200);
+    }
+
+    @Test
+    public void testFailedCheckFailsJob() {
+        AtomicInteger checks = new AtomicInteger();
+        CompletableFuture<String> job = poller.poll(() -> {
+            checks.incrementAndGet();
+            throw new DbxException("job lost");
+        }, s -> true);
+        assertThatThrownBy(job::join)
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(DbxException.class);
+        assertThat(checks.get()).isEqualTo(1);
+        assertThat(poller.getOutstandingCount()).isZero();
+    }
+
+    @Test
+    public void testCancelStopsPolling() throws InterruptedException {
+        AtomicInteger checks = new AtomicInteger();
+        CompletableFuture<Integer> job = poller.poll(checks::incrementAndGet, n -> true);
+        while (checks.get() < 2) {
+            Thread.sleep(5);
+        }
+        assertThat(poller.getOutstandingCount()).isEqualTo(1);
+
+        job.cancel(false);
+        int cancelledAt = checks.get();
+        Thread.sleep(200);
+        // a check already running when cancelled may still finish
+        assertThat(checks.get()).isLessThanOrEqualTo(cancelledAt + 1);
+        assertThat(poller.getOutstandingCount()).isZero();
+    }
+
+    private static long gapMillis(List<Long> checks, int i) {
+        return NANOSECONDS.toMillis(checks.get(i + 1) - checks.get(i));
+    }
+
+}